@@ -31,4 +31,14 @@ interface MarkdownCodeFenceCacheableProvider : MarkdownCodeFencePluginGenerating
    * Code fence plugin cache path
    */
   fun getCacheRootPath(): String = "${PathManager.getSystemPath()}${File.separator}markdown${File.separator}${javaClass.simpleName}"
+
+  /**
+   * Check if output for code fence content is already cached so [generateHtml] doesn't need to render it
+   */
+  fun isCached(text: String): Boolean = true
+
+  /**
+   * Renders output for code fence content into the cache, is called on a background thread
+   */
+  fun renderToCache(text: String) {}
 }
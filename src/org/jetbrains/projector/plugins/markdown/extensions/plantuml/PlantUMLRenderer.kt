@@ -0,0 +1,245 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.extensions.plantuml
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.startup.StartupActivity
+import com.intellij.openapi.util.io.FileUtil
+import com.intellij.util.concurrency.AppExecutorUtil
+import org.jetbrains.projector.plugins.markdown.settings.MarkdownApplicationSettings
+import org.jetbrains.projector.plugins.markdown.settings.MarkdownSettingsConfigurable
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+import java.net.URLClassLoader
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Renders PlantUML diagrams with the downloaded PlantUML jar.
+ *
+ * PlantUML classes are loaded and resolved to [MethodHandle]s once per jar, and the first rendering is done in background
+ * on startup and after a download, so the user doesn't wait for class loading and JIT warm-up on the first diagram.
+ * The class loader of the previous jar is closed once another jar is resolved.
+ */
+internal object PlantUMLRenderer {
+  private val LOG = Logger.getInstance(PlantUMLRenderer::class.java)
+
+  private const val WARM_UP_SOURCE = "@startuml\nAlice -> Bob: warm up\n@enduml"
+  private const val STEADY_STATE_REPORT_INTERVAL = 100
+
+  enum class Format(val extension: String) { PNG("png"), SVG("svg") }
+
+  /**
+   * Output format of diagrams, SVG if it's chosen in the Markdown settings and is supported by the jar
+   */
+  val format: Format
+    get() = if (MarkdownApplicationSettings.getInstance().isPlantUMLSvg && handles?.svg != null) Format.SVG else Format.PNG
+
+  private val warmedUpVersion = AtomicReference<String>()
+  private val renderCount = AtomicInteger()
+  private val steadyStateNanos = AtomicLong()
+
+  // handles resolved from the jar of the given version, so they are resolved again once another jar is downloaded
+  @Volatile
+  private var resolved: Pair<String, Handles?>? = null
+
+  private val handles: Handles?
+    get() {
+      val version = version
+      resolved?.let { (resolvedVersion, handles) -> if (resolvedVersion == version) return handles }
+
+      synchronized(this) {
+        resolved?.let { (resolvedVersion, handles) -> if (resolvedVersion == version) return handles }
+
+        val handles = if (MarkdownSettingsConfigurable.isPlantUMLAvailable()) resolveHandles() else null
+        resolved?.second?.close()
+        resolved = version to handles
+        return handles
+      }
+    }
+
+  /**
+   * Identifies rendered output, changes when another PlantUML jar is downloaded
+   */
+  val version: String
+    get() {
+      val jar = MarkdownSettingsConfigurable.getDownloadedJarPath()
+      return if (jar == null || !jar.exists()) "" else "${jar.name}:${jar.length()}:${jar.lastModified()}"
+    }
+
+  fun warmUp() {
+    if (!MarkdownSettingsConfigurable.isPlantUMLAvailable() || warmedUpVersion.getAndSet(version) == version) return
+
+    AppExecutorUtil.getAppExecutorService().execute {
+      val format = format
+      val file = FileUtil.createTempFile("plantUML-warm-up", ".${format.extension}", true)
+      try {
+        render(WARM_UP_SOURCE, file, format)
+      }
+      catch (e: IOException) {
+        LOG.warn(e.message)
+      }
+      finally {
+        FileUtil.delete(file)
+      }
+    }
+  }
+
+  /**
+   * @throws IOException if the diagram can't be rendered, no file is left then
+   */
+  @Throws(IOException::class)
+  fun render(source: String, file: File, format: Format) {
+    val handles = handles ?: throw IOException("PlantUML jar isn't downloaded or can't be loaded")
+
+    val start = System.nanoTime()
+    var rendered = false
+    try {
+      when (format) {
+        Format.PNG -> handles.png.invoke(source, file)
+        Format.SVG -> FileOutputStream(file).use { handles.svg!!.invoke(source, it) }
+      }
+      rendered = true
+    }
+    catch (e: ProcessCanceledException) {
+      throw e
+    }
+    catch (e: IOException) {
+      throw e
+    }
+    catch (e: Exception) {
+      throw IOException("Cannot render PlantUML diagram", e)
+    }
+    finally {
+      if (!rendered) FileUtil.delete(file)
+    }
+    report(System.nanoTime() - start)
+  }
+
+  private fun report(nanos: Long) {
+    val count = renderCount.incrementAndGet()
+    if (count == 1) {
+      LOG.info("First PlantUML diagram is rendered in ${TimeUnit.NANOSECONDS.toMillis(nanos)} ms")
+      return
+    }
+
+    val total = steadyStateNanos.addAndGet(nanos)
+    val steadyStateCount = count - 1
+    if (steadyStateCount % STEADY_STATE_REPORT_INTERVAL == 0) {
+      LOG.info("PlantUML diagrams are rendered in ${TimeUnit.NANOSECONDS.toMillis(total / steadyStateCount)} ms on average " +
+               "after the first one ($steadyStateCount diagrams)")
+    }
+  }
+
+  private fun resolveHandles(): Handles? {
+    val classLoader = URLClassLoader(arrayOf(MarkdownSettingsConfigurable.getDownloadedJarPath()?.toURI()?.toURL()),
+                                     this::class.java.classLoader)
+    val handles = resolveHandles(classLoader)
+    if (handles == null) {
+      closeClassLoader(classLoader)
+    }
+    return handles
+  }
+
+  private fun resolveHandles(classLoader: URLClassLoader): Handles? {
+    val sourceStringReader = try {
+      Class.forName("net.sourceforge.plantuml.SourceStringReader", false, classLoader)
+    }
+    catch (e: Exception) {
+      LOG.warn(
+        "net.sourceforge.plantuml.SourceStringReader class isn't found in downloaded PlantUML jar. " +
+        "Please try to download another PlantUML library version.", e
+      )
+      return null
+    }
+
+    val lookup = MethodHandles.publicLookup()
+    val constructor = try {
+      lookup.unreflectConstructor(sourceStringReader.getConstructor(String::class.java))
+    }
+    catch (e: Exception) {
+      LOG.warn("'net.sourceforge.plantuml.SourceStringReader' can't be created from a string. " +
+               "Please try to download another PlantUML library version.", e)
+      return null
+    }
+
+    val png = try {
+      MethodHandles.filterArguments(lookup.unreflect(sourceStringReader.getDeclaredMethod("generateImage", File::class.java)), 0, constructor)
+        .asType(MethodType.methodType(Any::class.java, String::class.java, File::class.java))
+    }
+    catch (e: Exception) {
+      LOG.warn(
+        "'generateImage' method isn't found in the class 'net.sourceforge.plantuml.SourceStringReader'. " +
+        "Please try to download another PlantUML library version.", e
+      )
+      return null
+    }
+
+    val svg = try {
+      val fileFormat = Class.forName("net.sourceforge.plantuml.FileFormat", false, classLoader)
+      val fileFormatOption = Class.forName("net.sourceforge.plantuml.FileFormatOption", false, classLoader)
+      val svgOption = fileFormatOption.getConstructor(fileFormat).newInstance(fileFormat.getField("SVG").get(null))
+      val method = sourceStringReader.getMethod("generateImage", OutputStream::class.java, fileFormatOption)
+
+      MethodHandles.filterArguments(MethodHandles.insertArguments(lookup.unreflect(method), 2, svgOption), 0, constructor)
+        .asType(MethodType.methodType(Any::class.java, String::class.java, OutputStream::class.java))
+    }
+    catch (e: Exception) {
+      LOG.warn("SVG output isn't supported by the downloaded PlantUML jar, diagrams are rendered as PNG", e)
+      null
+    }
+
+    return Handles(classLoader, png, svg)
+  }
+
+  private fun closeClassLoader(classLoader: URLClassLoader) {
+    try {
+      classLoader.close()
+    }
+    catch (e: IOException) {
+      LOG.warn("Cannot close PlantUML class loader", e)
+    }
+  }
+
+  /**
+   * @param png (String source, File file) -> Any?
+   * @param svg (String source, OutputStream stream) -> Any?
+   */
+  private class Handles(private val classLoader: URLClassLoader, val png: MethodHandle, val svg: MethodHandle?) {
+    fun close() = closeClassLoader(classLoader)
+  }
+}
+
+internal class PlantUMLRendererWarmUp : StartupActivity {
+  override fun runActivity(project: Project) = PlantUMLRenderer.warmUp()
+}
@@ -32,6 +32,7 @@ import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.TokenSet;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.psi.util.PsiUtilCore;
 import org.jetbrains.annotations.NotNull;
@@ -43,8 +44,11 @@ import org.jetbrains.projector.plugins.markdown.lang.psi.MarkdownElementVisitor;
 import org.jetbrains.projector.plugins.markdown.lang.psi.MarkdownPsiElement;
 import org.jetbrains.projector.plugins.markdown.lang.psi.MarkdownRecursiveElementVisitor;
 import org.jetbrains.projector.plugins.markdown.lang.psi.impl.*;
+import org.jetbrains.projector.plugins.markdown.util.MarkdownLargeFileMode;
 import org.jetbrains.projector.plugins.markdown.util.MarkdownPsiUtil;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -52,6 +56,13 @@ import java.util.Map;
 public class MarkdownFoldingBuilder extends CustomFoldingBuilder implements DumbAware {
   public static final Map<IElementType, String> TYPES_PRESENTATION_MAP = new HashMap<>();
 
+  private static final TokenSet TOP_LEVEL_FOLDABLE_TYPES = TokenSet.create(MarkdownElementTypes.ORDERED_LIST,
+                                                                           MarkdownElementTypes.UNORDERED_LIST,
+                                                                           MarkdownElementTypes.PARAGRAPH,
+                                                                           MarkdownElementTypes.TABLE,
+                                                                           MarkdownElementTypes.BLOCK_QUOTE,
+                                                                           MarkdownElementTypes.CODE_FENCE);
+
   static {
     TYPES_PRESENTATION_MAP.put(MarkdownElementTypes.ATX_1, MarkdownBundle.message("markdown.folding.atx.1.name"));
     TYPES_PRESENTATION_MAP.put(MarkdownElementTypes.ATX_2, MarkdownBundle.message("markdown.folding.atx.2.name"));
@@ -71,6 +82,11 @@ public class MarkdownFoldingBuilder extends CustomFoldingBuilder implements Dumb
                                           @NotNull PsiElement root,
                                           @NotNull Document document,
                                           boolean quick) {
+    if (MarkdownLargeFileMode.isEnabled(root.getContainingFile())) {
+      buildTopLevelFoldRegions(descriptors, root, document);
+      return;
+    }
+
     root.accept(new MarkdownElementVisitor() {
       @Override
       public void visitElement(@NotNull PsiElement element) {
@@ -147,6 +163,48 @@ public class MarkdownFoldingBuilder extends CustomFoldingBuilder implements Dumb
     });
   }
 
+  /**
+   * Folds the top-level blocks and header sections without going into the blocks, so the lazy content of large files isn't parsed
+   */
+  private static void buildTopLevelFoldRegions(@NotNull List<FoldingDescriptor> descriptors,
+                                               @NotNull PsiElement root,
+                                               @NotNull Document document) {
+    final ASTNode container = root.getNode().getFirstChildNode();
+    if (container == null) return;
+
+    final Deque<MarkdownHeaderImpl> openHeaders = new ArrayDeque<>();
+    ASTNode lastBlock = null;
+    for (ASTNode node = container.getFirstChildNode(); node != null; node = node.getTreeNext()) {
+      final IElementType type = node.getElementType();
+      if (type == MarkdownTokenTypes.EOL) continue;
+
+      final PsiElement element = node.getPsi();
+      if (element instanceof MarkdownHeaderImpl) {
+        final int level = MarkdownPsiUtil.headerLevel(type);
+        while (!openHeaders.isEmpty() && MarkdownPsiUtil.headerLevel(PsiUtilCore.getElementType(openHeaders.peek())) >= level) {
+          addSectionDescriptors(openHeaders.pop(), lastBlock, descriptors, document);
+        }
+        openHeaders.push((MarkdownHeaderImpl)element);
+      }
+      else if (TOP_LEVEL_FOLDABLE_TYPES.contains(type) && element instanceof MarkdownPsiElement) {
+        addDescriptors((MarkdownPsiElement)element, node.getTextRange(), descriptors, document);
+      }
+      lastBlock = node;
+    }
+
+    while (!openHeaders.isEmpty()) {
+      addSectionDescriptors(openHeaders.pop(), lastBlock, descriptors, document);
+    }
+  }
+
+  private static void addSectionDescriptors(@NotNull MarkdownHeaderImpl header,
+                                            @NotNull ASTNode lastBlock,
+                                            @NotNull List<FoldingDescriptor> descriptors,
+                                            @NotNull Document document) {
+    final TextRange range = TextRange.create(header.getTextRange().getStartOffset(), lastBlock.getTextRange().getEndOffset());
+    addDescriptors(header, range, descriptors, document);
+  }
+
   @Override
   protected String getLanguagePlaceholderText(@NotNull ASTNode node, @NotNull TextRange range) {
     IElementType elementType = PsiUtilCore.getElementType(node);
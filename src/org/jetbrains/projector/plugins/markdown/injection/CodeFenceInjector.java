@@ -36,6 +36,7 @@ import org.jetbrains.projector.plugins.markdown.lang.MarkdownTokenTypes;
 import org.jetbrains.projector.plugins.markdown.lang.psi.impl.MarkdownCodeFenceContentImpl;
 import org.jetbrains.projector.plugins.markdown.lang.psi.impl.MarkdownCodeFenceImpl;
 import org.jetbrains.projector.plugins.markdown.settings.MarkdownApplicationSettings;
+import org.jetbrains.projector.plugins.markdown.util.MarkdownLargeFileMode;
 
 import java.util.Collections;
 import java.util.List;
@@ -43,7 +44,7 @@ import java.util.List;
 public class CodeFenceInjector implements MultiHostInjector {
   @Override
   public void getLanguagesToInject(@NotNull MultiHostRegistrar registrar, @NotNull PsiElement context) {
-    if (!(context instanceof MarkdownCodeFenceImpl)) {
+    if (!(context instanceof MarkdownCodeFenceImpl) || MarkdownLargeFileMode.isEnabled(context.getContainingFile())) {
       return;
     }
     if (PsiTreeUtil.findChildOfType(context, MarkdownCodeFenceContentImpl.class) == null) {
@@ -26,6 +26,7 @@ package org.jetbrains.projector.plugins.markdown.lang;
 import com.intellij.psi.tree.IElementType;
 import org.intellij.markdown.MarkdownElementTypes;
 import org.intellij.markdown.MarkdownTokenTypes;
+import org.intellij.markdown.flavours.gfm.GFMElementTypes;
 import org.intellij.markdown.flavours.gfm.GFMTokenTypes;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NonNls;
@@ -34,17 +35,17 @@ import org.jetbrains.annotations.Nullable;
 import org.jetbrains.projector.plugins.markdown.lang.stubs.impl.MarkdownHeaderStubElementType;
 
 import java.text.MessageFormat;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class MarkdownElementType extends IElementType {
 
   @NotNull
-  private static final Map<org.intellij.markdown.IElementType, IElementType> markdownToPlatformTypeMap =
-    new HashMap<>();
+  private static final ConcurrentMap<org.intellij.markdown.IElementType, IElementType> markdownToPlatformTypeMap =
+    new ConcurrentHashMap<>();
   @NotNull
-  private static final Map<IElementType, org.intellij.markdown.IElementType> platformToMarkdownTypeMap =
-    new HashMap<>();
+  private static final ConcurrentMap<IElementType, org.intellij.markdown.IElementType> platformToMarkdownTypeMap =
+    new ConcurrentHashMap<>();
 
   public MarkdownElementType(@NotNull @NonNls String debugName) {
     super(debugName, MarkdownLanguage.INSTANCE);
@@ -57,15 +58,18 @@ public class MarkdownElementType extends IElementType {
   }
 
   @Contract("null -> null; !null -> !null")
-  public synchronized static IElementType platformType(@Nullable org.intellij.markdown.IElementType markdownType) {
+  public static IElementType platformType(@Nullable org.intellij.markdown.IElementType markdownType) {
     if (markdownType == null) {
       return null;
     }
 
-    if (markdownToPlatformTypeMap.containsKey(markdownType)) {
-      return markdownToPlatformTypeMap.get(markdownType);
-    }
+    // is called for every token, so known types are looked up without locking, computeIfAbsent locks even if the type is present
+    final IElementType result = markdownToPlatformTypeMap.get(markdownType);
+    return result != null ? result : markdownToPlatformTypeMap.computeIfAbsent(markdownType, MarkdownElementType::createPlatformType);
+  }
 
+  @NotNull
+  private static IElementType createPlatformType(@NotNull org.intellij.markdown.IElementType markdownType) {
     final IElementType result;
     if (markdownType == MarkdownElementTypes.PARAGRAPH
         || markdownType == MarkdownTokenTypes.ATX_CONTENT
@@ -73,12 +77,17 @@ public class MarkdownElementType extends IElementType {
         || markdownType == GFMTokenTypes.CELL) {
       result = new MarkdownLazyElementType(markdownType.toString());
     }
+    else if (markdownType == MarkdownElementTypes.LIST_ITEM
+             || markdownType == MarkdownElementTypes.BLOCK_QUOTE
+             || markdownType == MarkdownElementTypes.CODE_FENCE
+             || markdownType == GFMElementTypes.TABLE) {
+      result = new MarkdownReparseableBlockElementType(markdownType.toString());
+    }
     else {
       result = isHeaderElementType(markdownType)
                ? new MarkdownHeaderStubElementType(markdownType.toString())
                : new MarkdownElementType(markdownType.toString());
     }
-    markdownToPlatformTypeMap.put(markdownType, result);
     platformToMarkdownTypeMap.put(result, markdownType);
     return result;
   }
@@ -95,7 +104,7 @@ public class MarkdownElementType extends IElementType {
   }
 
   @Contract("!null -> !null")
-  public synchronized static org.intellij.markdown.IElementType markdownType(@Nullable IElementType platformType) {
+  public static org.intellij.markdown.IElementType markdownType(@Nullable IElementType platformType) {
     if (platformType == null) {
       return null;
     }
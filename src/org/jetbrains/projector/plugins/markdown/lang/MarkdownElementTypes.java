@@ -31,7 +31,13 @@ import org.intellij.markdown.flavours.gfm.GFMElementTypes;
 import org.intellij.markdown.flavours.gfm.GFMTokenTypes;
 
 public interface MarkdownElementTypes {
-  IFileElementType MARKDOWN_FILE_ELEMENT_TYPE = new IStubFileElementType("Markdown file", MarkdownLanguage.INSTANCE);
+  IFileElementType MARKDOWN_FILE_ELEMENT_TYPE = new IStubFileElementType("Markdown file", MarkdownLanguage.INSTANCE) {
+    @Override
+    public int getStubVersion() {
+      // header stubs store their anchors and text offsets, the other elements have no stubs
+      return 3;
+    }
+  };
 
   IElementType MARKDOWN_FILE = MarkdownElementType.platformType(org.intellij.markdown.MarkdownElementTypes.MARKDOWN_FILE);
 
@@ -26,24 +26,42 @@ package org.jetbrains.projector.plugins.markdown.lang
 import com.intellij.lang.Language
 import com.intellij.lang.LanguageParserDefinitions
 import com.intellij.lang.html.HTMLLanguage
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.application.ReadAction
 import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.psi.*
 import com.intellij.psi.impl.source.PsiFileImpl
 import com.intellij.psi.templateLanguages.TemplateLanguageFileViewProvider
-import gnu.trove.THashSet
+import com.intellij.util.FileContentUtilCore
+import com.intellij.util.concurrency.AppExecutorUtil
+import org.intellij.markdown.ast.ASTNode
 import org.jetbrains.projector.plugins.markdown.lang.MarkdownElementTypes.MARKDOWN_TEMPLATE_DATA
+import org.jetbrains.projector.plugins.markdown.lang.parser.MarkdownParserManager
 import org.jetbrains.projector.plugins.markdown.lang.psi.impl.MarkdownFile
+import java.util.ArrayDeque
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
 
+/**
+ * The HTML tree of a file holds only the content of its HTML blocks, so it's built only for files which have them.
+ * The languages of a view provider can't change, so the provider is recreated when a file gets its first HTML block.
+ * Edits are checked for a new HTML block in background once typing pauses, not in the write action of each commit.
+ */
 class MarkdownFileViewProvider(manager: PsiManager, virtualFile: VirtualFile, eventSystemEnabled: Boolean) :
   MultiplePsiFilesPerDocumentFileViewProvider(manager, virtualFile, eventSystemEnabled), TemplateLanguageFileViewProvider {
 
-  private val myRelevantLanguages = THashSet<Language>()
+  private val myHasHtmlBlocks by lazy { hasHtmlBlocks(contents) }
 
-  init {
-    myRelevantLanguages.add(baseLanguage)
-    myRelevantLanguages.add(templateDataLanguage)
+  private val myRelevantLanguages by lazy {
+    if (myHasHtmlBlocks) setOf(baseLanguage, templateDataLanguage) else setOf(baseLanguage)
   }
 
+  @Volatile
+  private var myRecreationRequested = false
+
+  @Volatile
+  private var myHtmlBlocksCheck: Future<*>? = null
+
   override fun createFile(lang: Language): PsiFile? {
     if (lang === MarkdownLanguage.INSTANCE) {
       return MarkdownFile(this)
@@ -59,6 +77,36 @@ class MarkdownFileViewProvider(manager: PsiManager, virtualFile: VirtualFile, ev
     return psiFile
   }
 
+  override fun contentsSynchronized() {
+    super.contentsSynchronized()
+
+    if (myHasHtmlBlocks || myRecreationRequested || !isEventSystemEnabled || !isPhysical) {
+      return
+    }
+
+    myHtmlBlocksCheck?.cancel(false)
+    myHtmlBlocksCheck = AppExecutorUtil.getAppScheduledExecutorService().schedule(Runnable { checkHtmlBlocks() },
+                                                                                   HTML_BLOCKS_CHECK_DELAY_MS, TimeUnit.MILLISECONDS)
+  }
+
+  private fun checkHtmlBlocks() {
+    if (myRecreationRequested || !virtualFile.isValid) {
+      return
+    }
+
+    val text = ReadAction.compute<CharSequence, RuntimeException> { contents }
+    if (!hasHtmlBlocks(text)) {
+      return
+    }
+
+    myRecreationRequested = true
+    ApplicationManager.getApplication().invokeLater {
+      if (virtualFile.isValid) {
+        FileContentUtilCore.reparseFiles(virtualFile)
+      }
+    }
+  }
+
   override fun getBaseLanguage(): Language = MarkdownLanguage.INSTANCE
 
   override fun getLanguages(): Set<Language> = myRelevantLanguages
@@ -67,6 +115,100 @@ class MarkdownFileViewProvider(manager: PsiManager, virtualFile: VirtualFile, ev
 
   override fun cloneInner(fileCopy: VirtualFile): MultiplePsiFilesPerDocumentFileViewProvider =
     MarkdownFileViewProvider(manager, fileCopy, false)
+
+  private companion object {
+    private fun hasHtmlBlocks(text: CharSequence): Boolean {
+      if (!mayHaveHtmlBlocks(text)) {
+        return false
+      }
+
+      val nodes = ArrayDeque<ASTNode>()
+      nodes.push(MarkdownParserManager.parseContent(text))
+      while (nodes.isNotEmpty()) {
+        val node = nodes.pop()
+        if (node.type == org.intellij.markdown.MarkdownElementTypes.HTML_BLOCK) {
+          return true
+        }
+        node.children.forEach(nodes::push)
+      }
+      return false
+    }
+
+    /**
+     * A quick check which saves parsing for the most files: an HTML block starts after the line indent, quote and list markers
+     * with a comment or a declaration, a block level tag, or any tag which is alone on its line.
+     * Inline tags followed by text, like `<kbd>` or `<img ...> text`, don't start a block.
+     */
+    private fun mayHaveHtmlBlocks(text: CharSequence): Boolean {
+      var lineStart = 0
+      while (lineStart < text.length) {
+        var offset = lineStart
+        while (offset < text.length && text[offset] in LINE_PREFIX_CHARS) {
+          offset++
+        }
+        var lineEnd = offset
+        while (lineEnd < text.length && text[lineEnd] != '\n') {
+          lineEnd++
+        }
+
+        if (offset + 1 < lineEnd && text[offset] == '<' && mayStartHtmlBlock(text, offset, lineEnd)) {
+          return true
+        }
+        lineStart = lineEnd + 1
+      }
+      return false
+    }
+
+    private fun mayStartHtmlBlock(text: CharSequence, tagStart: Int, lineEnd: Int): Boolean {
+      if (text[tagStart + 1] in "!?") {
+        return true
+      }
+
+      val nameStart = if (text[tagStart + 1] == '/') tagStart + 2 else tagStart + 1
+      var nameEnd = nameStart
+      while (nameEnd < lineEnd && (text[nameEnd].isLetterOrDigit() || text[nameEnd] == '-')) {
+        nameEnd++
+      }
+      if (nameEnd == nameStart || !text[nameStart].isLetter()) {
+        return false
+      }
+      if (text.subSequence(nameStart, nameEnd).toString().toLowerCase() in BLOCK_TAG_NAMES) {
+        return true
+      }
+
+      val tagEnd = findTagEnd(text, nameEnd, lineEnd)
+      return tagEnd >= 0 && (tagEnd + 1 until lineEnd).all { text[it].isWhitespace() }
+    }
+
+    /**
+     * @return offset of the `>` closing the tag on the line, a `>` inside a quoted attribute value doesn't close it
+     */
+    private fun findTagEnd(text: CharSequence, from: Int, lineEnd: Int): Int {
+      var quote: Char? = null
+      for (i in from until lineEnd) {
+        val c = text[i]
+        when {
+          quote != null -> if (c == quote) quote = null
+          c == '"' || c == '\'' -> quote = c
+          c == '>' -> return i
+        }
+      }
+      return -1
+    }
+
+    private const val LINE_PREFIX_CHARS = " \t>-+*.)0123456789"
+
+    private val HTML_BLOCKS_CHECK_DELAY_MS = java.lang.Long.getLong("projector.markdown.htmlBlocks.check.delay.ms", 500L)
+
+    // tags which start an HTML block even when followed by text, a superset of the parser's ones
+    private val BLOCK_TAG_NAMES = setOf(
+      "address", "article", "aside", "base", "basefont", "blockquote", "body", "caption", "center", "col", "colgroup", "dd", "details",
+      "dialog", "dir", "div", "dl", "dt", "fieldset", "figcaption", "figure", "footer", "form", "frame", "frameset", "h1", "h2", "h3",
+      "h4", "h5", "h6", "head", "header", "hr", "html", "iframe", "legend", "li", "link", "main", "menu", "menuitem", "meta", "nav",
+      "noframes", "ol", "optgroup", "option", "p", "param", "pre", "script", "section", "source", "style", "summary", "table", "tbody",
+      "td", "textarea", "tfoot", "th", "thead", "title", "tr", "track", "ul"
+    )
+  }
 }
 
 class MarkdownFileViewProviderFactory : FileViewProviderFactory {
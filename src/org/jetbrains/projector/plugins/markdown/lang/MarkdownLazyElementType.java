@@ -24,32 +24,56 @@
 package org.jetbrains.projector.plugins.markdown.lang;
 
 import com.intellij.lang.ASTNode;
+import com.intellij.lang.Language;
 import com.intellij.lang.PsiBuilder;
 import com.intellij.lang.PsiBuilderFactory;
 import com.intellij.lexer.Lexer;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.psi.PsiElement;
-import com.intellij.psi.tree.ILazyParseableElementType;
+import com.intellij.psi.impl.source.tree.LazyParseableElement;
+import com.intellij.psi.tree.IReparseableElementType;
 import org.intellij.markdown.flavours.MarkdownFlavourDescriptor;
-import org.intellij.markdown.parser.MarkdownParser;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.projector.plugins.markdown.lang.lexer.MarkdownMergingLexer;
 import org.jetbrains.projector.plugins.markdown.lang.parser.MarkdownParserManager;
+import org.jetbrains.projector.plugins.markdown.lang.parser.MarkdownReparseableBlocks;
 import org.jetbrains.projector.plugins.markdown.lang.parser.PsiBuilderFillingVisitor;
 
-public class MarkdownLazyElementType extends ILazyParseableElementType {
+public class MarkdownLazyElementType extends IReparseableElementType {
   private static final Logger LOG = Logger.getInstance(MarkdownLazyElementType.class);
 
+  // the builder lexes the whole chameleon when it's created, so a lexer is never used by two builders at once
+  private static final ThreadLocal<Lexer> ourLexer = ThreadLocal.withInitial(MarkdownMergingLexer::new);
+
   public MarkdownLazyElementType(@NotNull @NonNls String debugName) {
     super(debugName, MarkdownLanguage.INSTANCE);
   }
 
+  @Override
+  public ASTNode createNode(CharSequence text) {
+    return new LazyParseableElement(this, text);
+  }
+
+  /**
+   * Only top-level paragraphs are reparsed alone, the other inline holders are reparsed with the enclosing block
+   */
+  @Override
+  public boolean isParsable(@Nullable ASTNode parent, @NotNull CharSequence buffer, @NotNull Language fileLanguage, @NotNull Project project) {
+    return this == MarkdownElementTypes.PARAGRAPH && MarkdownReparseableBlocks.isParsable(this, parent, buffer);
+  }
+
+  @Override
+  public boolean isValidReparse(@NotNull ASTNode oldNode, @NotNull ASTNode newNode) {
+    return MarkdownReparseableBlocks.isValidReparse(oldNode, newNode);
+  }
+
   @Override
   protected ASTNode doParseContents(@NotNull ASTNode chameleon, @NotNull PsiElement psi) {
     final Project project = psi.getProject();
-    final Lexer lexer = new MarkdownMergingLexer();
+    final Lexer lexer = ourLexer.get();
     final CharSequence chars = chameleon.getChars();
 
     MarkdownFlavourDescriptor flavour = psi.getContainingFile().getUserData(MarkdownParserManager.FLAVOUR_DESCRIPTION);
@@ -58,14 +82,20 @@ public class MarkdownLazyElementType extends ILazyParseableElementType {
       flavour = MarkdownParserManager.FLAVOUR;
     }
 
-    final org.intellij.markdown.ast.ASTNode node = new MarkdownParser(flavour)
-      .parseInline(MarkdownElementType.markdownType(chameleon.getElementType()), chars, 0, chars.length());
+    final org.intellij.markdown.ast.ASTNode node =
+      MarkdownParserManager.parseInline(MarkdownElementType.markdownType(chameleon.getElementType()), chars, flavour);
 
-    final PsiBuilder builder = PsiBuilderFactory.getInstance().createBuilder(project, chameleon, lexer, getLanguage(), chars);
-    assert builder.getCurrentOffset() == 0;
-    new PsiBuilderFillingVisitor(builder).visitNode(node);
-    assert builder.eof();
+    try {
+      final PsiBuilder builder = PsiBuilderFactory.getInstance().createBuilder(project, chameleon, lexer, getLanguage(), chars);
+      assert builder.getCurrentOffset() == 0;
+      new PsiBuilderFillingVisitor(builder).visitNode(node);
+      assert builder.eof();
 
-    return builder.getTreeBuilt().getFirstChildNode();
+      return builder.getTreeBuilt().getFirstChildNode();
+    }
+    finally {
+      // the thread keeps the lexer, which must not keep the last chameleon text
+      lexer.start("");
+    }
   }
 }
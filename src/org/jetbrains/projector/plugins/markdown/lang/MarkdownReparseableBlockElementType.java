@@ -0,0 +1,99 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.Language;
+import com.intellij.lang.PsiBuilder;
+import com.intellij.lang.PsiBuilderFactory;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.impl.source.tree.LazyParseableElement;
+import com.intellij.psi.tree.IReparseableElementType;
+import org.intellij.markdown.flavours.MarkdownFlavourDescriptor;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.projector.plugins.markdown.lang.lexer.MarkdownTableLexer;
+import org.jetbrains.projector.plugins.markdown.lang.lexer.MarkdownToplevelLexer;
+import org.jetbrains.projector.plugins.markdown.lang.parser.MarkdownReparseableBlocks;
+import org.jetbrains.projector.plugins.markdown.lang.parser.PsiBuilderFillingVisitor;
+import org.jetbrains.projector.plugins.markdown.lang.psi.impl.MarkdownCodeFenceImpl;
+
+/**
+ * Type of block elements (list items, block quotes, code fences and tables) which are reparsed alone
+ * when an edit inside a top-level one keeps its boundaries, see {@link MarkdownReparseableBlocks}.
+ * <p>
+ * Top-level tables are chameleons from the start: the PSI of a table is built in one builder pass together with its cells,
+ * whose inline trees come from the shared inline parse cache, so cells aren't separate chameleons.
+ */
+public class MarkdownReparseableBlockElementType extends IReparseableElementType {
+  public MarkdownReparseableBlockElementType(@NotNull @NonNls String debugName) {
+    super(debugName, MarkdownLanguage.INSTANCE);
+  }
+
+  @Override
+  public ASTNode createNode(CharSequence text) {
+    return this == MarkdownElementTypes.CODE_FENCE ? new MarkdownCodeFenceImpl(this, text) : new LazyParseableElement(this, text);
+  }
+
+  @Override
+  public boolean isParsable(@Nullable ASTNode parent, @NotNull CharSequence buffer, @NotNull Language fileLanguage, @NotNull Project project) {
+    return MarkdownReparseableBlocks.isParsable(this, parent, buffer);
+  }
+
+  @Override
+  public boolean isValidReparse(@NotNull ASTNode oldNode, @NotNull ASTNode newNode) {
+    return MarkdownReparseableBlocks.isValidReparse(oldNode, newNode);
+  }
+
+  @Override
+  protected ASTNode doParseContents(@NotNull ASTNode chameleon, @NotNull PsiElement psi) {
+    final MarkdownFlavourDescriptor flavour = MarkdownReparseableBlocks.getFlavour(psi);
+    final CharSequence chars = chameleon.getChars();
+
+    final boolean isTable = this == MarkdownElementTypes.TABLE;
+    final Lexer lexer = isTable ? new MarkdownTableLexer(flavour) : new MarkdownToplevelLexer(flavour, true);
+    final PsiBuilder builder = PsiBuilderFactory.getInstance().createBuilder(psi.getProject(), chameleon, lexer, getLanguage(), chars);
+    final PsiBuilder.Marker rootMarker = builder.mark();
+
+    org.intellij.markdown.ast.ASTNode block = MarkdownReparseableBlocks.parseBlock(this, chars, flavour);
+    if (block != null && isTable) {
+      block = MarkdownReparseableBlocks.withCellContents(block, chars, flavour);
+    }
+    if (block != null) {
+      final PsiBuilderFillingVisitor visitor = new PsiBuilderFillingVisitor(builder);
+      for (org.intellij.markdown.ast.ASTNode child : block.getChildren()) {
+        visitor.visitNode(child);
+      }
+    }
+    while (!builder.eof()) {
+      builder.advanceLexer();
+    }
+
+    rootMarker.done(this);
+    return builder.getTreeBuilt().getFirstChildNode();
+  }
+}
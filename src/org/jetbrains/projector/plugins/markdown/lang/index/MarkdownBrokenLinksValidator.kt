@@ -0,0 +1,143 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.index
+
+import com.intellij.concurrency.JobLauncher
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.project.DumbService
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.Computable
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.search.GlobalSearchScope
+import com.intellij.util.containers.ContainerUtil
+import com.intellij.util.indexing.FileBasedIndex
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Checks the links of [MarkdownLinksIndex] with a task per target name, the tasks run concurrently, each in its own read action.
+ * The links of all files to the same target name are checked together, so every distinct target and anchor is resolved once.
+ */
+class MarkdownBrokenLinksValidator(private val project: Project, private val scope: GlobalSearchScope) {
+  /**
+   * @param resolvedPathCount number of distinct (base, path) targets resolved
+   * @param checkedAnchorCount number of distinct (target, anchor) pairs looked up
+   */
+  class Result(val brokenLinks: List<MarkdownLinkUsage>,
+               val fileCount: Int,
+               val linkCount: Int,
+               val resolvedPathCount: Int,
+               val checkedAnchorCount: Int,
+               val nanos: Long) {
+    val filesPerSecond: Long
+      get() = perSecond(fileCount)
+
+    val linksPerSecond: Long
+      get() = perSecond(linkCount)
+
+    private fun perSecond(count: Int): Long = count * TimeUnit.SECONDS.toNanos(1) / maxOf(nanos, 1)
+  }
+
+  private val myBrokenLinks = ConcurrentLinkedQueue<MarkdownLinkUsage>()
+  private val myFiles = ContainerUtil.newConcurrentSet<VirtualFile>()
+  private val myLinkCount = AtomicInteger()
+  private val myResolvedPathCount = AtomicInteger()
+  private val myCheckedAnchorCount = AtomicInteger()
+
+  fun validate(indicator: ProgressIndicator): Result {
+    val start = System.nanoTime()
+
+    val targetNames = runReadActionInSmartMode {
+      val names = mutableListOf<String>()
+      FileBasedIndex.getInstance().processAllKeys(MarkdownLinksIndex.NAME, { names.add(it) }, scope, null)
+      names
+    }
+
+    indicator.isIndeterminate = false
+    val validatedCount = AtomicInteger()
+    val completed = JobLauncher.getInstance().invokeConcurrentlyUnderProgress(targetNames, indicator) { targetName ->
+      runReadActionInSmartMode { validateTarget(targetName) }
+      indicator.fraction = validatedCount.incrementAndGet().toDouble() / targetNames.size
+      true
+    }
+    if (!completed) throw ProcessCanceledException()
+
+    val result = Result(myBrokenLinks.toList(), myFiles.size, myLinkCount.get(), myResolvedPathCount.get(), myCheckedAnchorCount.get(),
+                        System.nanoTime() - start)
+    LOG.info("Markdown links are validated in ${TimeUnit.NANOSECONDS.toMillis(result.nanos)} ms: " +
+             "${result.fileCount} files (${result.filesPerSecond} files/s), ${result.linkCount} links (${result.linksPerSecond} links/s), " +
+             "${result.resolvedPathCount} paths resolved, ${result.checkedAnchorCount} anchors checked, ${result.brokenLinks.size} broken")
+    return result
+  }
+
+  private fun validateTarget(targetName: String) {
+    // paths which don't resolve are cached too, as null targets
+    val targets = HashMap<Pair<VirtualFile, String>, VirtualFile?>()
+    val anchors = HashMap<Pair<VirtualFile, String>, Boolean>()
+
+    FileBasedIndex.getInstance().processValues(MarkdownLinksIndex.NAME, targetName, null, { file, links ->
+      myFiles.add(file)
+      myLinkCount.addAndGet(links.size)
+
+      for (link in links) {
+        ProgressManager.checkCanceled()
+
+        val base = MarkdownLinkGraph.getBase(project, file, link)
+        val target = if (base == null) null else {
+          val key = base to link.path
+          if (targets.containsKey(key)) targets[key] else resolve(base, link.path).also { targets[key] = it }
+        }
+
+        val anchor = link.anchor
+        val broken = target == null || anchor != null && !target.isDirectory &&
+                     !anchors.getOrPut(target to anchor) { hasAnchor(target, anchor) }
+        if (broken) {
+          myBrokenLinks.add(MarkdownLinkUsage(file, link))
+        }
+      }
+      true
+    }, scope)
+  }
+
+  private fun resolve(base: VirtualFile, path: String): VirtualFile? {
+    myResolvedPathCount.incrementAndGet()
+    return MarkdownLinkGraph.resolve(base, path)
+  }
+
+  private fun hasAnchor(target: VirtualFile, anchor: String): Boolean {
+    myCheckedAnchorCount.incrementAndGet()
+    return MarkdownLinkGraph.hasAnchor(project, target, anchor)
+  }
+
+  private fun <T> runReadActionInSmartMode(computable: () -> T): T =
+    DumbService.getInstance(project).runReadActionInSmartMode(Computable { computable() })
+
+  companion object {
+    private val LOG = Logger.getInstance(MarkdownBrokenLinksValidator::class.java)
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.index
+
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.roots.ProjectFileIndex
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.search.GlobalSearchScope
+import com.intellij.psi.stubs.StubIndex
+import com.intellij.util.indexing.FileBasedIndex
+import com.intellij.util.io.URLUtil
+import org.jetbrains.projector.plugins.markdown.lang.psi.impl.MarkdownHeaderImpl
+
+data class MarkdownLinkUsage(val file: VirtualFile, val link: MarkdownLink)
+
+/**
+ * Queries over [MarkdownLinksIndex], a link is resolved relative to the linking file and a leading slash stands for its content root.
+ * The resolution doesn't need PSI, unlike the link references which the inspection and the editor use.
+ * Has to be called in a read action in smart mode.
+ */
+object MarkdownLinkGraph {
+  fun resolve(project: Project, file: VirtualFile, link: MarkdownLink): VirtualFile? =
+    getBase(project, file, link)?.let { resolve(it, link.path) }
+
+  /**
+   * The file which the link path is relative to, links with the same base and path have the same target
+   */
+  fun getBase(project: Project, file: VirtualFile, link: MarkdownLink): VirtualFile? = when {
+    link.path.isEmpty() -> file
+    link.path.startsWith("/") -> ProjectFileIndex.getInstance(project).getContentRootForFile(file)
+    else -> file.parent
+  }
+
+  fun resolve(base: VirtualFile, path: String): VirtualFile? =
+    if (path.isEmpty()) base else base.findFileByRelativePath(URLUtil.unescapePercentSequences(path).trimStart('/'))
+
+  fun hasAnchor(project: Project, file: VirtualFile, anchor: String): Boolean {
+    return !StubIndex.getInstance().processElements(
+      MarkdownHeaderAnchorsIndex.KEY, anchor, project,
+      GlobalSearchScope.fileScope(project, file),
+      MarkdownHeaderImpl::class.java
+    ) { false }
+  }
+
+  /**
+   * Links to the file, only ones to the anchor if it's given
+   */
+  fun getBacklinks(project: Project, target: VirtualFile, anchor: String?, scope: GlobalSearchScope): List<MarkdownLinkUsage> {
+    val usages = mutableListOf<MarkdownLinkUsage>()
+    FileBasedIndex.getInstance().processValues(MarkdownLinksIndex.NAME, target.name, null, { file, links ->
+      links.filter { (anchor == null || it.anchor == anchor) && resolve(project, file, it) == target }
+        .mapTo(usages) { MarkdownLinkUsage(file, it) }
+      true
+    }, scope)
+    return usages
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.index
+
+import com.intellij.openapi.util.io.DataInputOutputUtilRt
+import com.intellij.util.indexing.*
+import com.intellij.util.io.DataExternalizer
+import com.intellij.util.io.EnumeratorStringDescriptor
+import com.intellij.util.io.IOUtil
+import com.intellij.util.io.KeyDescriptor
+import com.intellij.util.io.URLUtil
+import org.intellij.markdown.MarkdownElementTypes
+import org.intellij.markdown.MarkdownTokenTypes
+import org.intellij.markdown.ast.ASTNode
+import org.intellij.markdown.flavours.gfm.GFMTokenTypes
+import org.jetbrains.projector.plugins.markdown.lang.MarkdownFileType
+import org.jetbrains.projector.plugins.markdown.lang.parser.MarkdownParserManager
+import org.jetbrains.projector.plugins.markdown.lang.references.MarkdownAnchorReference
+import java.io.DataInput
+import java.io.DataOutput
+import java.util.ArrayDeque
+
+/**
+ * A link destination: the path is empty for a link to an anchor of the same file, the anchor is null for a link to a whole file.
+ * The anchor is normalized like header anchors, see [MarkdownAnchorReference.normalizeLinkAnchor].
+ * The offset and the length are of the destination text in the linking file.
+ */
+data class MarkdownLink(val path: String, val anchor: String?, val offset: Int, val length: Int)
+
+/**
+ * Outgoing links of Markdown files by the name of the target file, links to anchors of the same file are under its own name.
+ * Paths can't be resolved while indexing, so the links are resolved on use, see [MarkdownLinkGraph].
+ */
+class MarkdownLinksIndex : FileBasedIndexExtension<String, List<MarkdownLink>>() {
+  override fun getName(): ID<String, List<MarkdownLink>> = NAME
+
+  override fun getIndexer(): DataIndexer<String, List<MarkdownLink>, FileContent> = DataIndexer { inputData ->
+    collectLinks(inputData.contentAsText, inputData.fileName)
+  }
+
+  override fun getKeyDescriptor(): KeyDescriptor<String> = EnumeratorStringDescriptor.INSTANCE
+
+  override fun getValueExternalizer(): DataExternalizer<List<MarkdownLink>> = LinksExternalizer
+
+  override fun getVersion(): Int = 2
+
+  override fun getInputFilter(): FileBasedIndex.InputFilter = DefaultFileTypeSpecificInputFilter(MarkdownFileType.INSTANCE)
+
+  override fun dependsOnFileContent(): Boolean = true
+
+  private object LinksExternalizer : DataExternalizer<List<MarkdownLink>> {
+    override fun save(out: DataOutput, value: List<MarkdownLink>) {
+      DataInputOutputUtilRt.writeINT(out, value.size)
+      for (link in value) {
+        IOUtil.writeUTF(out, link.path)
+        IOUtil.writeUTF(out, link.anchor ?: "")
+        DataInputOutputUtilRt.writeINT(out, link.offset)
+        DataInputOutputUtilRt.writeINT(out, link.length)
+      }
+    }
+
+    override fun read(input: DataInput): List<MarkdownLink> {
+      val size = DataInputOutputUtilRt.readINT(input)
+      return List(size) {
+        val path = IOUtil.readUTF(input)
+        val anchor = IOUtil.readUTF(input)
+        val offset = DataInputOutputUtilRt.readINT(input)
+        MarkdownLink(path, if (anchor.isEmpty()) null else anchor, offset, DataInputOutputUtilRt.readINT(input))
+      }
+    }
+  }
+
+  companion object {
+    val NAME: ID<String, List<MarkdownLink>> = ID.create("markdown.links")
+
+    private val INLINE_HOLDERS = setOf(MarkdownElementTypes.PARAGRAPH,
+                                       MarkdownTokenTypes.ATX_CONTENT,
+                                       MarkdownTokenTypes.SETEXT_CONTENT,
+                                       GFMTokenTypes.CELL)
+
+    /**
+     * The inline content is parsed only in the block tree nodes which hold it, the same way as chameleons are.
+     * The indexer bypasses the shared parse caches, so indexing doesn't evict the trees of the open editors from them,
+     * but it parses under the same budget and depth limit, so a pathological file can't stall the indexing.
+     */
+    private fun collectLinks(text: CharSequence, fileName: String): Map<String, List<MarkdownLink>> {
+      val links = HashMap<String, MutableList<MarkdownLink>>()
+      fun addLink(node: ASTNode, shift: Int) {
+        val link = createLink(text, node.startOffset + shift, node.endOffset + shift) ?: return
+        val target = (if (link.path.isEmpty()) fileName else getTargetName(link.path)) ?: return
+        links.getOrPut(target) { mutableListOf() }.add(link)
+      }
+
+      val blocks = ArrayDeque<ASTNode>()
+      blocks.push(MarkdownParserManager.parseContentUncached(text, MarkdownParserManager.FLAVOUR))
+      while (blocks.isNotEmpty()) {
+        val block = blocks.pop()
+        when (block.type) {
+          MarkdownElementTypes.LINK_DESTINATION -> addLink(block, 0)
+          in INLINE_HOLDERS -> {
+            val content = text.subSequence(block.startOffset, block.endOffset)
+            val inlines = ArrayDeque<ASTNode>()
+            inlines.push(MarkdownParserManager.parseInlineUncached(block.type, content, MarkdownParserManager.FLAVOUR))
+            while (inlines.isNotEmpty()) {
+              val inline = inlines.pop()
+              if (inline.type == MarkdownElementTypes.LINK_DESTINATION) {
+                addLink(inline, block.startOffset)
+              }
+              else {
+                inline.children.forEach(inlines::push)
+              }
+            }
+          }
+          else -> block.children.forEach(blocks::push)
+        }
+      }
+      return links
+    }
+
+    private fun createLink(text: CharSequence, startOffset: Int, endOffset: Int): MarkdownLink? {
+      var start = startOffset
+      var end = endOffset
+      if (end - start >= 2 && text[start] == '<' && text[end - 1] == '>') {
+        start++
+        end--
+      }
+
+      val destination = text.subSequence(start, end).toString()
+      if (destination.isEmpty() || URLUtil.containsScheme(destination) || destination.startsWith("mailto:")) {
+        return null
+      }
+
+      val anchorStart = destination.indexOf('#')
+      if (anchorStart < 0) {
+        return MarkdownLink(destination, null, start, end - start)
+      }
+      val anchor = MarkdownAnchorReference.normalizeLinkAnchor(destination.substring(anchorStart + 1))
+      return MarkdownLink(destination.substring(0, anchorStart), if (anchor.isEmpty()) null else anchor, start, end - start)
+    }
+
+    private fun getTargetName(path: String): String? {
+      val name = URLUtil.unescapePercentSequences(path.trimEnd('/').substringAfterLast('/'))
+      return if (name.isEmpty() || name == "." || name == "..") null else name
+    }
+  }
+}
@@ -25,26 +25,40 @@ package org.jetbrains.projector.plugins.markdown.lang.lexer;
 
 import com.intellij.lexer.LexerBase;
 import com.intellij.psi.tree.IElementType;
+import com.intellij.util.ArrayUtil;
+import org.intellij.markdown.MarkdownTokenTypes;
 import org.intellij.markdown.ast.ASTNode;
-import org.intellij.markdown.ast.ASTNodeKt;
-import org.intellij.markdown.ast.visitors.RecursiveVisitor;
+import org.intellij.markdown.flavours.gfm.GFMElementTypes;
 import org.intellij.markdown.flavours.MarkdownFlavourDescriptor;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.projector.plugins.markdown.lang.MarkdownElementType;
 import org.jetbrains.projector.plugins.markdown.lang.parser.MarkdownParserManager;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 
 public class MarkdownToplevelLexer extends LexerBase {
+  /**
+   * State of tokens the lexer can be restarted from, so the editor highlighter re-lexes a document from the nearest such token
+   * before a change. These are the first token and blank lines between top-level blocks: they end all the previous blocks,
+   * so the rest of the document is lexed the same way whether it's lexed alone or with the text before it.
+   */
+  private static final int RESTART_STATE = 0;
+  private static final int IN_BLOCK_STATE = 1;
+
   @NotNull final MarkdownFlavourDescriptor myFlavour;
+  private final boolean myCollapseTables;
   private CharSequence myBuffer;
   private int myBufferStart;
   private int myBufferEnd;
-  private List<IElementType> myLexemes;
-  private List<Integer> myStartOffsets;
-  private List<Integer> myEndOffsets;
+  @NotNull private IElementType[] myLexemes = IElementType.EMPTY_ARRAY;
+  @NotNull private int[] myStartOffsets = ArrayUtil.EMPTY_INT_ARRAY;
+  @NotNull private int[] myEndOffsets = ArrayUtil.EMPTY_INT_ARRAY;
+  @NotNull private int[] myStates = ArrayUtil.EMPTY_INT_ARRAY;
+  private int myLexemeCount;
   private int myLexemeIndex;
 
   public MarkdownToplevelLexer() {
@@ -52,7 +66,15 @@ public class MarkdownToplevelLexer extends LexerBase {
   }
 
   public MarkdownToplevelLexer(@NotNull MarkdownFlavourDescriptor flavour) {
+    this(flavour, false);
+  }
+
+  /**
+   * @param collapseTables whether top-level tables are single tokens, so the PSI builder makes them chameleons
+   */
+  public MarkdownToplevelLexer(@NotNull MarkdownFlavourDescriptor flavour, boolean collapseTables) {
     myFlavour = flavour;
+    myCollapseTables = collapseTables;
   }
 
   @Override
@@ -61,42 +83,72 @@ public class MarkdownToplevelLexer extends LexerBase {
     myBufferStart = startOffset;
     myBufferEnd = endOffset;
 
-    final ASTNode parsedTree = MarkdownParserManager.parseContent(buffer.subSequence(startOffset, endOffset), myFlavour);
-    myLexemes = new ArrayList<>();
-    myStartOffsets = new ArrayList<>();
-    myEndOffsets = new ArrayList<>();
-    ASTNodeKt.accept(parsedTree, new LexerBuildingVisitor());
+    // the whole buffer is passed as is, so the parse tree is found in the cache by the text identity
+    final CharSequence text = startOffset == 0 && endOffset == buffer.length() ? buffer : buffer.subSequence(startOffset, endOffset);
+    final ASTNode parsedTree = MarkdownParserManager.parseContent(text, myFlavour);
+    myLexemeCount = 0;
     myLexemeIndex = 0;
+
+    boolean afterEol = true;
+    for (ASTNode child : parsedTree.getChildren()) {
+      final org.intellij.markdown.IElementType type = child.getType();
+      if (child.getStartOffset() == child.getEndOffset()) {
+        continue;
+      }
+
+      if (type == MarkdownTokenTypes.EOL) {
+        addLexeme(child, afterEol || myLexemeCount == 0 ? RESTART_STATE : IN_BLOCK_STATE);
+        afterEol = true;
+      }
+      else if (type == MarkdownTokenTypes.WHITE_SPACE) {
+        addLexeme(child, myLexemeCount == 0 ? RESTART_STATE : IN_BLOCK_STATE);
+      }
+      else if (myCollapseTables && type == GFMElementTypes.TABLE) {
+        addLexeme(child, myLexemeCount == 0 ? RESTART_STATE : IN_BLOCK_STATE);
+        afterEol = false;
+      }
+      else {
+        final int firstLexeme = myLexemeCount;
+        addLeaves(child);
+        if (firstLexeme == 0 && myLexemeCount > 0) {
+          myStates[0] = RESTART_STATE;
+        }
+        afterEol = false;
+      }
+    }
   }
 
   @Override
   public int getState() {
-    return myLexemeIndex;
+    if (myLexemeIndex >= myLexemeCount) {
+      return RESTART_STATE;
+    }
+    return myStates[myLexemeIndex];
   }
 
   @Nullable
   @Override
   public IElementType getTokenType() {
-    if (myLexemeIndex >= myLexemes.size()) {
+    if (myLexemeIndex >= myLexemeCount) {
       return null;
     }
-    return myLexemes.get(myLexemeIndex);
+    return myLexemes[myLexemeIndex];
   }
 
   @Override
   public int getTokenStart() {
-    if (myLexemeIndex >= myLexemes.size()) {
+    if (myLexemeIndex >= myLexemeCount) {
       return myBufferEnd;
     }
-    return myBufferStart + myStartOffsets.get(myLexemeIndex);
+    return myBufferStart + myStartOffsets[myLexemeIndex];
   }
 
   @Override
   public int getTokenEnd() {
-    if (myLexemeIndex >= myLexemes.size()) {
+    if (myLexemeIndex >= myLexemeCount) {
       return myBufferEnd;
     }
-    return myBufferStart + myEndOffsets.get(myLexemeIndex);
+    return myBufferStart + myEndOffsets[myLexemeIndex];
   }
 
   @Override
@@ -115,21 +167,41 @@ public class MarkdownToplevelLexer extends LexerBase {
     return myBufferEnd;
   }
 
-  private class LexerBuildingVisitor extends RecursiveVisitor {
+  private void addLexeme(@NotNull ASTNode node, int state) {
+    if (myLexemeCount == myLexemes.length) {
+      final int capacity = Math.max(16, myLexemeCount * 2);
+      myLexemes = Arrays.copyOf(myLexemes, capacity);
+      myStartOffsets = Arrays.copyOf(myStartOffsets, capacity);
+      myEndOffsets = Arrays.copyOf(myEndOffsets, capacity);
+      myStates = Arrays.copyOf(myStates, capacity);
+    }
 
-    @Override
-    public void visitNode(@NotNull ASTNode node) {
+    myLexemes[myLexemeCount] = MarkdownElementType.platformType(node.getType());
+    myStartOffsets[myLexemeCount] = node.getStartOffset();
+    myEndOffsets[myLexemeCount] = node.getEndOffset();
+    myStates[myLexemeCount] = state;
+    myLexemeCount++;
+  }
+
+  /**
+   * Adds non-empty leaves of the block in order, the tree is walked with an explicit stack as it can be arbitrarily deep
+   */
+  private void addLeaves(@NotNull ASTNode block) {
+    final Deque<ASTNode> nodes = new ArrayDeque<>();
+    nodes.push(block);
+    while (!nodes.isEmpty()) {
+      final ASTNode node = nodes.pop();
       if (node.getStartOffset() == node.getEndOffset()) {
-        return;
+        continue;
       }
+
       final List<ASTNode> children = node.getChildren();
       if (children.isEmpty()) {
-        myLexemes.add(MarkdownElementType.platformType(node.getType()));
-        myStartOffsets.add(node.getStartOffset());
-        myEndOffsets.add(node.getEndOffset());
+        addLexeme(node, IN_BLOCK_STATE);
+        continue;
       }
-      else {
-        super.visitNode(node);
+      for (int i = children.size() - 1; i >= 0; i--) {
+        nodes.push(children.get(i));
       }
     }
   }
@@ -0,0 +1,52 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.parser
+
+import org.intellij.markdown.flavours.MarkdownFlavourDescriptor
+import org.intellij.markdown.parser.sequentialparsers.SequentialParser
+import org.intellij.markdown.parser.sequentialparsers.SequentialParserManager
+import org.intellij.markdown.parser.sequentialparsers.TokensCache
+
+/**
+ * The flavour with its inline parsers counting their steps against the budget of [MarkdownGuardedParser], whatever the flavour is.
+ * Each inline parser run takes a step per token of the ranges it's given, so inputs which make the parsers go over
+ * the same tokens again and again, like nested brackets or emphasis, run out of the budget.
+ */
+internal class MarkdownGuardedFlavourDescriptor(private val flavour: MarkdownFlavourDescriptor) : MarkdownFlavourDescriptor by flavour {
+
+  private val guardedParserManager = object : SequentialParserManager() {
+    private val parsers = flavour.sequentialParserManager.getParserSequence().map(::GuardedSequentialParser)
+
+    override fun getParserSequence(): List<SequentialParser> = parsers
+  }
+
+  override val sequentialParserManager: SequentialParserManager get() = guardedParserManager
+
+  private class GuardedSequentialParser(private val parser: SequentialParser) : SequentialParser {
+    override fun parse(tokens: TokensCache, rangesToGlue: List<IntRange>): SequentialParser.ParsingResult {
+      MarkdownGuardedParser.takeSteps(1 + rangesToGlue.sumBy { it.last - it.first + 1 })
+      return parser.parse(tokens, rangesToGlue)
+    }
+  }
+}
@@ -0,0 +1,304 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.parser;
+
+import com.intellij.openapi.diagnostic.ControlFlowException;
+import com.intellij.openapi.diagnostic.Logger;
+import org.intellij.markdown.IElementType;
+import org.intellij.markdown.MarkdownElementTypes;
+import org.intellij.markdown.MarkdownTokenTypes;
+import org.intellij.markdown.ast.ASTNode;
+import org.intellij.markdown.ast.ASTNodeBuilder;
+import org.intellij.markdown.ast.CompositeASTNode;
+import org.intellij.markdown.ast.LeafASTNode;
+import org.intellij.markdown.flavours.MarkdownFlavourDescriptor;
+import org.intellij.markdown.parser.LookaheadText;
+import org.intellij.markdown.parser.MarkdownParser;
+import org.intellij.markdown.parser.MarkerProcessor;
+import org.intellij.markdown.parser.ProductionHolder;
+import org.intellij.markdown.parser.TopLevelBuilder;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Protects block and inline parsing of any flavour from pathological input.
+ * <p>
+ * A parse may take a number of steps proportional to the text length ({@code projector.markdown.parse.budget.stepsPerChar}),
+ * so the same text is always parsed the same way. The block parse takes a step per position of the marker processor,
+ * inline parsers take steps per token they go over, see {@link MarkdownGuardedFlavourDescriptor}.
+ * When the budget of a block parse is exceeded, the text is parsed again block by block and the blocks which exceed it alone
+ * are kept as plain text. Such trees are {@linkplain #isDegraded(ASTNode) degraded} and aren't cached.
+ * Inline content which exceeds the budget is kept as plain text.
+ * <p>
+ * Nodes nested deeper than {@code projector.markdown.parse.maxDepth} are kept as plain text as well,
+ * so recursive tree walkers downstream don't overflow the stack.
+ */
+final class MarkdownGuardedParser {
+  private static final Logger LOG = Logger.getInstance(MarkdownGuardedParser.class);
+
+  private static final int BUDGET_STEPS_PER_CHAR = Integer.getInteger("projector.markdown.parse.budget.stepsPerChar", 64);
+  private static final long MIN_BUDGET_STEPS = 1 << 20;
+  private static final int MAX_DEPTH = Integer.getInteger("projector.markdown.parse.maxDepth", 128);
+
+  // steps left for the current parse of the thread, 0 if nothing is being parsed
+  private static final ThreadLocal<long[]> ourStepsLeft = ThreadLocal.withInitial(() -> new long[1]);
+
+  private MarkdownGuardedParser() {
+  }
+
+  @NotNull
+  static ASTNode parse(@NotNull String text, @NotNull MarkdownFlavourDescriptor flavour) {
+    try {
+      return limitDepth(parseWithBudget(text, flavour));
+    }
+    catch (BudgetExceededException e) {
+      LOG.info("Markdown parsing exceeded the budget for " + text.length() + " chars, parsing blocks separately");
+      return degraded(limitDepth(parseBlocksSeparately(text, flavour)));
+    }
+  }
+
+  /**
+   * @param parser the parser of the {@linkplain #guard(MarkdownFlavourDescriptor) guarded} flavour
+   * @return the inline tree, or the content as plain text if it exceeds the budget
+   */
+  @NotNull
+  static ASTNode parseInline(@NotNull IElementType type, @NotNull CharSequence text, @NotNull MarkdownParser parser) {
+    final long[] stepsLeft = ourStepsLeft.get();
+    stepsLeft[0] = budget(text);
+    try {
+      final ASTNode tree = parser.parseInline(type, text, 0, text.length());
+      if (exceedsMaxDepth(tree)) {
+        LOG.info("Markdown inline content of " + text.length() + " chars is nested too deep, keeping its deepest part as plain text");
+        return cutNestedBlocks(tree, 1);
+      }
+      return tree;
+    }
+    catch (BudgetExceededException e) {
+      LOG.info("Markdown inline content exceeded the budget for " + text.length() + " chars, keeping it as plain text");
+      return degraded(type, Collections.singletonList(new LeafASTNode(MarkdownTokenTypes.TEXT, 0, text.length())));
+    }
+    finally {
+      stepsLeft[0] = 0;
+    }
+  }
+
+  /**
+   * @return the flavour whose inline parsers count their steps against the budget
+   */
+  @NotNull
+  static MarkdownFlavourDescriptor guard(@NotNull MarkdownFlavourDescriptor flavour) {
+    return flavour instanceof MarkdownGuardedFlavourDescriptor ? flavour : new MarkdownGuardedFlavourDescriptor(flavour);
+  }
+
+  /**
+   * @return {@code true} if some nodes of the tree are kept as plain text because they exceeded the budget
+   */
+  static boolean isDegraded(@NotNull ASTNode tree) {
+    return tree instanceof DegradedTree;
+  }
+
+  @NotNull
+  static ASTNode degraded(@NotNull ASTNode tree) {
+    return degraded(MarkdownElementTypes.MARKDOWN_FILE, tree.getChildren());
+  }
+
+  @NotNull
+  private static ASTNode degraded(@NotNull IElementType type, @NotNull List<? extends ASTNode> children) {
+    return new DegradedTree(type, children);
+  }
+
+  /**
+   * Throws when the budget of the current parse of the thread is exceeded, does nothing outside of guarded parses
+   */
+  static void takeSteps(int steps) {
+    final long[] stepsLeft = ourStepsLeft.get();
+    if (stepsLeft[0] == 0) return;
+
+    stepsLeft[0] -= steps;
+    if (stepsLeft[0] <= 0) {
+      throw BudgetExceededException.INSTANCE;
+    }
+  }
+
+  private static long budget(@NotNull CharSequence text) {
+    return MIN_BUDGET_STEPS + (long)BUDGET_STEPS_PER_CHAR * text.length();
+  }
+
+  @NotNull
+  private static ASTNode parseWithBudget(@NotNull String text, @NotNull MarkdownFlavourDescriptor flavour) {
+    final long[] stepsLeft = ourStepsLeft.get();
+    stepsLeft[0] = budget(text);
+    try {
+      return parseBlocks(text, flavour);
+    }
+    finally {
+      stepsLeft[0] = 0;
+    }
+  }
+
+  /**
+   * Does what {@link MarkdownParser#parse} does without inlines, taking a step per position of the marker processor of any flavour
+   */
+  @NotNull
+  private static ASTNode parseBlocks(@NotNull String text, @NotNull MarkdownFlavourDescriptor flavour) {
+    final ProductionHolder productionHolder = new ProductionHolder();
+    final MarkerProcessor<?> markerProcessor = flavour.getMarkerProcessorFactory().createMarkerProcessor(productionHolder);
+    final ProductionHolder.Marker rootMarker = productionHolder.mark();
+
+    LookaheadText.Position position = new LookaheadText(text).getStartPosition();
+    while (position != null) {
+      takeSteps(1);
+      productionHolder.updatePosition(position.getOffset());
+      position = markerProcessor.processPosition(position);
+    }
+
+    productionHolder.updatePosition(text.length());
+    markerProcessor.flushMarkers();
+    rootMarker.done(MarkdownElementTypes.MARKDOWN_FILE);
+
+    return new TopLevelBuilder(new ASTNodeBuilder(text)).buildTree(productionHolder.getProduction());
+  }
+
+  @NotNull
+  private static ASTNode parseBlocksSeparately(@NotNull String text, @NotNull MarkdownFlavourDescriptor flavour) {
+    final List<Integer> boundaries = MarkdownParallelParser.findChunkBoundaries(text, 0);
+    final List<ASTNode> blockTrees = new ArrayList<>(boundaries.size() - 1);
+    for (int i = 0; i < boundaries.size() - 1; i++) {
+      final String block = text.substring(boundaries.get(i), boundaries.get(i + 1));
+      try {
+        blockTrees.add(parseWithBudget(block, flavour));
+      }
+      catch (BudgetExceededException e) {
+        LOG.info("Markdown block at " + boundaries.get(i) + " exceeded the budget, keeping it as plain text");
+        blockTrees.add(new CompositeASTNode(MarkdownElementTypes.MARKDOWN_FILE, plainText(block)));
+      }
+    }
+    return MarkdownParallelParser.merge(boundaries, blockTrees);
+  }
+
+  /**
+   * @return a text leaf followed by the trailing line breaks and spaces, so blank lines still separate the blocks
+   */
+  @NotNull
+  private static List<ASTNode> plainText(@NotNull String block) {
+    int textEnd = block.length();
+    while (textEnd > 0 && Character.isWhitespace(block.charAt(textEnd - 1))) {
+      textEnd--;
+    }
+
+    final List<ASTNode> leaves = new ArrayList<>();
+    if (textEnd > 0) {
+      leaves.add(new LeafASTNode(MarkdownTokenTypes.TEXT, 0, textEnd));
+    }
+    int offset = textEnd;
+    while (offset < block.length()) {
+      if (block.charAt(offset) == '\n') {
+        leaves.add(new LeafASTNode(MarkdownTokenTypes.EOL, offset, offset + 1));
+        offset++;
+        continue;
+      }
+      final int spaceStart = offset;
+      while (offset < block.length() && block.charAt(offset) != '\n') {
+        offset++;
+      }
+      leaves.add(new LeafASTNode(MarkdownTokenTypes.WHITE_SPACE, spaceStart, offset));
+    }
+    return leaves;
+  }
+
+  @NotNull
+  private static ASTNode limitDepth(@NotNull ASTNode tree) {
+    List<ASTNode> children = null;
+    for (int i = 0; i < tree.getChildren().size(); i++) {
+      final ASTNode child = tree.getChildren().get(i);
+      if (exceedsMaxDepth(child)) {
+        if (children == null) {
+          children = new ArrayList<>(tree.getChildren());
+        }
+        LOG.info("Markdown block at " + child.getStartOffset() + " is nested too deep, keeping its deepest part as plain text");
+        children.set(i, cutNestedBlocks(child, 1));
+      }
+    }
+    return children == null ? tree : new CompositeASTNode(tree.getType(), children);
+  }
+
+  /**
+   * @return a copy of the node with the composite nodes below {@link #MAX_DEPTH} replaced by text leaves,
+   * the recursion is bounded by {@link #MAX_DEPTH} as well
+   */
+  @NotNull
+  private static ASTNode cutNestedBlocks(@NotNull ASTNode node, int depth) {
+    final List<ASTNode> children = new ArrayList<>(node.getChildren().size());
+    for (ASTNode child : node.getChildren()) {
+      if (child.getChildren().isEmpty()) {
+        children.add(child);
+      }
+      else if (depth == MAX_DEPTH) {
+        children.add(new LeafASTNode(MarkdownTokenTypes.TEXT, child.getStartOffset(), child.getEndOffset()));
+      }
+      else {
+        children.add(cutNestedBlocks(child, depth + 1));
+      }
+    }
+    return new CompositeASTNode(node.getType(), children);
+  }
+
+  private static boolean exceedsMaxDepth(@NotNull ASTNode root) {
+    final Deque<ASTNode> nodes = new ArrayDeque<>(Collections.singletonList(root));
+    final Deque<Integer> depths = new ArrayDeque<>(Collections.singletonList(1));
+    while (!nodes.isEmpty()) {
+      final ASTNode node = nodes.pop();
+      final int depth = depths.pop();
+      if (depth > MAX_DEPTH) {
+        return true;
+      }
+      for (ASTNode child : node.getChildren()) {
+        if (!child.getChildren().isEmpty()) {
+          nodes.push(child);
+          depths.push(depth + 1);
+        }
+      }
+    }
+    return false;
+  }
+
+  private static final class DegradedTree extends CompositeASTNode {
+    private DegradedTree(@NotNull IElementType type, @NotNull List<? extends ASTNode> children) {
+      super(type, children);
+    }
+  }
+
+  private static final class BudgetExceededException extends RuntimeException implements ControlFlowException {
+    private static final BudgetExceededException INSTANCE = new BudgetExceededException();
+
+    private BudgetExceededException() {
+      super(null, null, false, false);
+    }
+  }
+}
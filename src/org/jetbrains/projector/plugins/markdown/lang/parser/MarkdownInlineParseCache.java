@@ -0,0 +1,157 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.parser;
+
+import com.intellij.openapi.util.text.StringUtil;
+import org.intellij.markdown.IElementType;
+import org.intellij.markdown.ast.ASTNode;
+import org.intellij.markdown.flavours.MarkdownFlavourDescriptor;
+import org.intellij.markdown.parser.MarkdownParser;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Inline parse trees of lazy elements, keyed by the element type, the text and the flavour. The trees have offsets
+ * relative to the element start, so an element with the same text anywhere in any file reuses the tree, e.g. when it's expanded
+ * again after a reparse of the enclosing block or when a table repeats the same cells.
+ * <p>
+ * Keeps up to {@code projector.markdown.inline.cache.size} trees of up to {@code projector.markdown.inline.cache.chars} chars in total,
+ * the longer texts aren't cached. The parsing is {@linkplain MarkdownGuardedParser guarded}, the content which exceeds the budget
+ * is kept as plain text and isn't cached.
+ */
+public final class MarkdownInlineParseCache {
+  private static final int MAX_SIZE = Integer.getInteger("projector.markdown.inline.cache.size", 4096);
+  private static final long MAX_TOTAL_LENGTH = Long.getLong("projector.markdown.inline.cache.chars", 1024 * 1024);
+  private static final int MAX_TEXT_LENGTH = 8 * 1024;
+
+  private static final ThreadLocal<ParserHolder> ourParser = ThreadLocal.withInitial(ParserHolder::new);
+
+  // access ordered, so the eldest entry is the least recently used one
+  private final LinkedHashMap<Key, ASTNode> myTrees = new LinkedHashMap<>(16, 0.75f, true);
+  private long myTotalLength;
+
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+
+  @NotNull
+  public ASTNode get(@NotNull IElementType type, @NotNull CharSequence text, @NotNull MarkdownFlavourDescriptor flavour) {
+    if (text.length() > MAX_TEXT_LENGTH) {
+      myMisses.incrementAndGet();
+      return parse(type, text, flavour);
+    }
+
+    final Key key = new Key(type, text.toString(), flavour);
+    ASTNode tree;
+    synchronized (myTrees) {
+      tree = myTrees.get(key);
+    }
+    if (tree != null) {
+      myHits.incrementAndGet();
+      return tree;
+    }
+
+    myMisses.incrementAndGet();
+    tree = parse(type, key.myText, flavour);
+    if (MarkdownGuardedParser.isDegraded(tree)) {
+      return tree;
+    }
+    synchronized (myTrees) {
+      if (myTrees.put(key, tree) == null) {
+        myTotalLength += key.myText.length();
+      }
+
+      final Iterator<Key> iterator = myTrees.keySet().iterator();
+      while (myTrees.size() > MAX_SIZE || myTotalLength > MAX_TOTAL_LENGTH) {
+        myTotalLength -= iterator.next().myText.length();
+        iterator.remove();
+      }
+    }
+    return tree;
+  }
+
+  public long getHitCount() {
+    return myHits.get();
+  }
+
+  public long getMissCount() {
+    return myMisses.get();
+  }
+
+  @Override
+  public String toString() {
+    return "MarkdownInlineParseCache(hits=" + getHitCount() + ", misses=" + getMissCount() + ")";
+  }
+
+  @NotNull
+  static ASTNode parse(@NotNull IElementType type, @NotNull CharSequence text, @NotNull MarkdownFlavourDescriptor flavour) {
+    return MarkdownGuardedParser.parseInline(type, text, ourParser.get().getParser(flavour));
+  }
+
+  /**
+   * The parser of the last used flavour on the thread
+   */
+  private static final class ParserHolder {
+    private MarkdownFlavourDescriptor myFlavour;
+    private MarkdownParser myParser;
+
+    @NotNull
+    MarkdownParser getParser(@NotNull MarkdownFlavourDescriptor flavour) {
+      if (myFlavour != flavour) {
+        myFlavour = flavour;
+        myParser = new MarkdownParser(MarkdownGuardedParser.guard(flavour));
+      }
+      return myParser;
+    }
+  }
+
+  private static final class Key {
+    @NotNull final IElementType myType;
+    @NotNull final String myText;
+    @NotNull final MarkdownFlavourDescriptor myFlavour;
+    final int myHash;
+
+    Key(@NotNull IElementType type, @NotNull String text, @NotNull MarkdownFlavourDescriptor flavour) {
+      myType = type;
+      myText = text;
+      myFlavour = flavour;
+      myHash = 31 * type.hashCode() + StringUtil.stringHashCode(text);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      final Key key = (Key)o;
+      return myType == key.myType && myFlavour == key.myFlavour && myHash == key.myHash && myText.equals(key.myText);
+    }
+
+    @Override
+    public int hashCode() {
+      return myHash;
+    }
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.parser;
+
+import com.intellij.openapi.util.text.StringUtil;
+import org.intellij.markdown.MarkdownElementTypes;
+import org.intellij.markdown.ast.ASTNode;
+import org.intellij.markdown.ast.CompositeASTNode;
+import org.intellij.markdown.ast.LeafASTNode;
+import org.intellij.markdown.flavours.MarkdownFlavourDescriptor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Parses the block structure of large documents on the fork-join pool.
+ * <p>
+ * The text is split into chunks at lines which start a top-level block after a blank line outside of fences and multiline HTML blocks
+ * and which can't continue a list or a block quote. Such a line ends all the previous blocks, so the chunks are parsed independently
+ * and their trees are merged into one with shifted offsets.
+ * <p>
+ * Is used for texts longer than the {@code projector.markdown.parse.parallel.threshold} system property (in chars), is off by default.
+ */
+final class MarkdownParallelParser {
+  private static final int THRESHOLD = Integer.getInteger("projector.markdown.parse.parallel.threshold", -1);
+  private static final int MIN_CHUNK_LENGTH = 64 * 1024;
+
+  private static final String[] HTML_RAW_TAGS = {"script", "pre", "style"};
+
+  private MarkdownParallelParser() {
+  }
+
+  static boolean isEnabled(@NotNull CharSequence text) {
+    return THRESHOLD >= 0 && text.length() >= Math.max(THRESHOLD, 2 * MIN_CHUNK_LENGTH);
+  }
+
+  @NotNull
+  static ASTNode parse(@NotNull String text, @NotNull MarkdownFlavourDescriptor flavour) {
+    final int chunkLength = Math.max(MIN_CHUNK_LENGTH, text.length() / (ForkJoinPool.getCommonPoolParallelism() * 4));
+    final List<Integer> boundaries = findChunkBoundaries(text, chunkLength);
+    if (boundaries.size() <= 2) {
+      return MarkdownGuardedParser.parse(text, flavour);
+    }
+
+    final List<ASTNode> chunkTrees = IntStream.range(0, boundaries.size() - 1)
+      .parallel()
+      .mapToObj(i -> MarkdownGuardedParser.parse(text.substring(boundaries.get(i), boundaries.get(i + 1)), flavour))
+      .collect(Collectors.toList());
+    final ASTNode tree = merge(boundaries, chunkTrees);
+    return chunkTrees.stream().anyMatch(MarkdownGuardedParser::isDegraded) ? MarkdownGuardedParser.degraded(tree) : tree;
+  }
+
+  /**
+   * @param boundaries chunk start offsets followed by the text length
+   * @param chunkTrees file trees of the chunks
+   */
+  @NotNull
+  static ASTNode merge(@NotNull List<Integer> boundaries, @NotNull List<ASTNode> chunkTrees) {
+    final List<ASTNode> children = new ArrayList<>();
+    for (int i = 0; i < chunkTrees.size(); i++) {
+      for (ASTNode child : chunkTrees.get(i).getChildren()) {
+        children.add(shift(child, boundaries.get(i)));
+      }
+    }
+    return new CompositeASTNode(MarkdownElementTypes.MARKDOWN_FILE, children);
+  }
+
+  /**
+   * @return a copy of the tree with shifted offsets, the nodes of the original tree keep their parents
+   */
+  @NotNull
+  static ASTNode shift(@NotNull ASTNode node, int delta) {
+    if (node instanceof LeafASTNode) {
+      return new LeafASTNode(node.getType(), node.getStartOffset() + delta, node.getEndOffset() + delta);
+    }
+
+    final List<ASTNode> children = new ArrayList<>(node.getChildren().size());
+    for (ASTNode child : node.getChildren()) {
+      children.add(shift(child, delta));
+    }
+    return new CompositeASTNode(node.getType(), children);
+  }
+
+  /**
+   * @return chunk start offsets followed by the text length
+   */
+  @NotNull
+  static List<Integer> findChunkBoundaries(@NotNull String text, int chunkLength) {
+    final List<Integer> boundaries = new ArrayList<>();
+    boundaries.add(0);
+
+    int nextBoundary = chunkLength;
+    boolean previousBlank = true;
+    String fence = null;
+    String htmlBlockEnd = null;
+
+    int lineStart = 0;
+    while (lineStart < text.length()) {
+      int lineEnd = text.indexOf('\n', lineStart);
+      if (lineEnd < 0) {
+        lineEnd = text.length();
+      }
+
+      if (fence != null) {
+        if (isClosingFence(text, lineStart, lineEnd, fence)) {
+          fence = null;
+        }
+        previousBlank = false;
+      }
+      else if (htmlBlockEnd != null) {
+        if (indexOfIgnoreCase(text, htmlBlockEnd, lineStart, lineEnd) >= 0) {
+          htmlBlockEnd = null;
+        }
+        previousBlank = false;
+      }
+      else {
+        final boolean blank = isBlank(text, lineStart, lineEnd);
+        if (!blank && previousBlank && lineStart >= nextBoundary && isIndependentBlockStart(text, lineStart, lineEnd)) {
+          boundaries.add(lineStart);
+          nextBoundary = lineStart + chunkLength;
+        }
+
+        fence = getOpeningFence(text, lineStart, lineEnd);
+        if (fence == null) {
+          htmlBlockEnd = getMultilineHtmlBlockEnd(text, lineStart, lineEnd);
+        }
+        previousBlank = blank;
+      }
+
+      lineStart = lineEnd + 1;
+    }
+
+    boundaries.add(text.length());
+    return boundaries;
+  }
+
+  private static boolean isBlank(@NotNull String text, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (!Character.isWhitespace(text.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A non-indented line which isn't a list item or a block quote, so it can't belong to the blocks before a blank line
+   */
+  private static boolean isIndependentBlockStart(@NotNull String text, int start, int end) {
+    final char c = text.charAt(start);
+    if (Character.isWhitespace(c) || c == '>') {
+      return false;
+    }
+    if (c == '-' || c == '+' || c == '*') {
+      return start + 1 < end && !Character.isWhitespace(text.charAt(start + 1));
+    }
+
+    int i = start;
+    while (i < end && i - start < 9 && Character.isDigit(text.charAt(i))) {
+      i++;
+    }
+    if (i > start && i < end && (text.charAt(i) == '.' || text.charAt(i) == ')')) {
+      return i + 1 < end && !Character.isWhitespace(text.charAt(i + 1));
+    }
+    return true;
+  }
+
+  private static int skipIndent(@NotNull String text, int start, int end) {
+    int i = start;
+    while (i < end && i - start < 3 && text.charAt(i) == ' ') {
+      i++;
+    }
+    return i;
+  }
+
+  @Nullable
+  private static String getOpeningFence(@NotNull String text, int start, int end) {
+    final int markerStart = skipIndent(text, start, end);
+    if (markerStart >= end || (text.charAt(markerStart) != '`' && text.charAt(markerStart) != '~')) {
+      return null;
+    }
+
+    final char c = text.charAt(markerStart);
+    int markerEnd = markerStart;
+    while (markerEnd < end && text.charAt(markerEnd) == c) {
+      markerEnd++;
+    }
+    if (markerEnd - markerStart < 3 || (c == '`' && text.indexOf('`', markerEnd) >= 0 && text.indexOf('`', markerEnd) < end)) {
+      return null;
+    }
+    return text.substring(markerStart, markerEnd);
+  }
+
+  private static boolean isClosingFence(@NotNull String text, int start, int end, @NotNull String fence) {
+    final int markerStart = skipIndent(text, start, end);
+    int markerEnd = markerStart;
+    while (markerEnd < end && text.charAt(markerEnd) == fence.charAt(0)) {
+      markerEnd++;
+    }
+    return markerEnd - markerStart >= fence.length() && isBlank(text, markerEnd, end);
+  }
+
+  /**
+   * @return the end marker of an HTML block which may contain blank lines and doesn't end on its first line
+   */
+  @Nullable
+  private static String getMultilineHtmlBlockEnd(@NotNull String text, int start, int end) {
+    final int tagStart = skipIndent(text, start, end);
+    if (tagStart >= end || text.charAt(tagStart) != '<') {
+      return null;
+    }
+
+    final String endMarker;
+    int contentStart;
+    if (text.startsWith("<!--", tagStart)) {
+      endMarker = "-->";
+      contentStart = tagStart + 4;
+    }
+    else if (text.startsWith("<?", tagStart)) {
+      endMarker = "?>";
+      contentStart = tagStart + 2;
+    }
+    else if (text.startsWith("<![CDATA[", tagStart)) {
+      endMarker = "]]>";
+      contentStart = tagStart + 9;
+    }
+    else if (text.startsWith("<!", tagStart) && tagStart + 2 < end && Character.isUpperCase(text.charAt(tagStart + 2))) {
+      endMarker = ">";
+      contentStart = tagStart + 2;
+    }
+    else {
+      String rawTagEnd = null;
+      contentStart = tagStart;
+      for (String tag : HTML_RAW_TAGS) {
+        final int nameEnd = tagStart + 1 + tag.length();
+        if (text.regionMatches(true, tagStart + 1, tag, 0, tag.length()) &&
+            (nameEnd >= end || text.charAt(nameEnd) == '>' || Character.isWhitespace(text.charAt(nameEnd)))) {
+          rawTagEnd = "</" + tag + ">";
+          contentStart = nameEnd;
+          break;
+        }
+      }
+      if (rawTagEnd == null) {
+        return null;
+      }
+      endMarker = rawTagEnd;
+    }
+
+    return indexOfIgnoreCase(text, endMarker, contentStart, end) >= 0 ? null : endMarker;
+  }
+
+  private static int indexOfIgnoreCase(@NotNull String text, @NotNull String what, int start, int end) {
+    final int index = StringUtil.indexOfIgnoreCase(text, what, start);
+    return index >= 0 && index + what.length() <= end ? index : -1;
+  }
+}
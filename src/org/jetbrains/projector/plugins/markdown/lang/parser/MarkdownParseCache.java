@@ -0,0 +1,169 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.parser;
+
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.text.ImmutableCharSequence;
+import org.intellij.markdown.ast.ASTNode;
+import org.intellij.markdown.flavours.MarkdownFlavourDescriptor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Block-level parse trees shared by the lexer, the PSI parser, the indexers and the preview, which run on different threads.
+ * <p>
+ * A document hands out the same immutable text instance until it's modified, so the text identity stands for the document
+ * and its modification stamp: such lookups are answered without even hashing the text.
+ * Other texts are matched by content.
+ * <p>
+ * Keeps up to {@code projector.markdown.parse.cache.size} trees of up to {@code projector.markdown.parse.cache.chars} chars in total,
+ * as the size of a tree grows with its text. Texts longer than {@code projector.markdown.parse.cache.maxTextChars} aren't cached.
+ */
+public final class MarkdownParseCache {
+  private static final int MAX_SIZE = Integer.getInteger("projector.markdown.parse.cache.size", 16);
+  private static final long MAX_TOTAL_LENGTH = Long.getLong("projector.markdown.parse.cache.chars", 4 * 1024 * 1024);
+  private static final int MAX_TEXT_LENGTH = Integer.getInteger("projector.markdown.parse.cache.maxTextChars", 1024 * 1024);
+
+  // access ordered, so the eldest entry is the least recently used one
+  private final LinkedHashMap<Key, ASTNode> myTrees = new LinkedHashMap<>(16, 0.75f, true);
+  private long myTotalLength;
+
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+
+  @NotNull
+  public ASTNode get(@NotNull CharSequence text,
+                     @NotNull MarkdownFlavourDescriptor flavour,
+                     @NotNull Function<CharSequence, ASTNode> parser) {
+    if (text.length() > MAX_TEXT_LENGTH) {
+      myMisses.incrementAndGet();
+      return parser.apply(text);
+    }
+
+    ASTNode tree = findByIdentity(text, flavour);
+    if (tree != null) {
+      myHits.incrementAndGet();
+      return tree;
+    }
+
+    final Key key = new Key(text, flavour);
+    synchronized (myTrees) {
+      tree = myTrees.get(key);
+    }
+    if (tree != null) {
+      myHits.incrementAndGet();
+      return tree;
+    }
+
+    myMisses.incrementAndGet();
+    tree = parser.apply(text);
+    // a degraded tree is still used, but the text is parsed again next time rather than kept degraded in all the consumers
+    if (!MarkdownGuardedParser.isDegraded(tree)) {
+      synchronized (myTrees) {
+        if (myTrees.put(key.toStable(), tree) == null) {
+          myTotalLength += text.length();
+        }
+
+        final Iterator<Key> iterator = myTrees.keySet().iterator();
+        while (myTrees.size() > MAX_SIZE || myTotalLength > MAX_TOTAL_LENGTH) {
+          myTotalLength -= iterator.next().myText.length();
+          iterator.remove();
+        }
+      }
+    }
+    return tree;
+  }
+
+  public long getHitCount() {
+    return myHits.get();
+  }
+
+  public long getMissCount() {
+    return myMisses.get();
+  }
+
+  @Override
+  public String toString() {
+    return "MarkdownParseCache(hits=" + getHitCount() + ", misses=" + getMissCount() + ")";
+  }
+
+  @Nullable
+  private ASTNode findByIdentity(@NotNull CharSequence text, @NotNull MarkdownFlavourDescriptor flavour) {
+    synchronized (myTrees) {
+      for (Map.Entry<Key, ASTNode> entry : myTrees.entrySet()) {
+        final Key key = entry.getKey();
+        if (key.myText == text && key.myFlavour == flavour) {
+          // touch the entry so it becomes the most recently used one
+          return myTrees.get(key);
+        }
+      }
+    }
+    return null;
+  }
+
+  private static final class Key {
+    @NotNull final CharSequence myText;
+    @NotNull final MarkdownFlavourDescriptor myFlavour;
+    final int myHash;
+
+    Key(@NotNull CharSequence text, @NotNull MarkdownFlavourDescriptor flavour) {
+      this(text, flavour, StringUtil.stringHashCode(text));
+    }
+
+    private Key(@NotNull CharSequence text, @NotNull MarkdownFlavourDescriptor flavour, int hash) {
+      myText = text;
+      myFlavour = flavour;
+      myHash = hash;
+    }
+
+    /**
+     * @return the key which is safe to keep, i.e. doesn't refer to a text that can be changed later
+     */
+    @NotNull
+    Key toStable() {
+      return myText instanceof String || myText instanceof ImmutableCharSequence ? this : new Key(myText.toString(), myFlavour, myHash);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      final Key key = (Key)o;
+      return myFlavour == key.myFlavour &&
+             myHash == key.myHash &&
+             (myText == key.myText || StringUtil.equals(myText, key.myText));
+    }
+
+    @Override
+    public int hashCode() {
+      return myHash;
+    }
+  }
+}
@@ -47,7 +47,7 @@ public class MarkdownParserDefinition implements ParserDefinition {
   @NotNull
   @Override
   public Lexer createLexer(Project project) {
-    return new MarkdownToplevelLexer();
+    return new MarkdownToplevelLexer(MarkdownParserManager.FLAVOUR, true);
   }
 
   @NotNull
@@ -24,10 +24,9 @@
 package org.jetbrains.projector.plugins.markdown.lang.parser;
 
 import com.intellij.openapi.util.Key;
-import org.intellij.markdown.MarkdownElementTypes;
+import org.intellij.markdown.IElementType;
 import org.intellij.markdown.ast.ASTNode;
 import org.intellij.markdown.flavours.MarkdownFlavourDescriptor;
-import org.intellij.markdown.parser.MarkdownParser;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.projector.plugins.markdown.extensions.CodeFencePluginFlavourDescriptor;
 
@@ -37,33 +36,52 @@ public class MarkdownParserManager {
   public static final GFMCommentAwareFlavourDescriptor FLAVOUR = new GFMCommentAwareFlavourDescriptor();
   public static final CodeFencePluginFlavourDescriptor CODE_FENCE_PLUGIN_FLAVOUR = new CodeFencePluginFlavourDescriptor();
 
-  private static final ThreadLocal<ParsingInfo> ourLastParsingResult = new ThreadLocal<>();
+  private static final MarkdownParseCache ourParseCache = new MarkdownParseCache();
+  private static final MarkdownInlineParseCache ourInlineParseCache = new MarkdownInlineParseCache();
 
   public static ASTNode parseContent(@NotNull CharSequence buffer) {
     return parseContent(buffer, FLAVOUR);
   }
 
   public static ASTNode parseContent(@NotNull CharSequence buffer, @NotNull MarkdownFlavourDescriptor flavour) {
-    final ParsingInfo info = ourLastParsingResult.get();
-    if (info != null && info.myBufferHash == buffer.hashCode() && info.myBuffer.equals(buffer)) {
-      return info.myParseResult;
-    }
+    return ourParseCache.get(buffer, flavour, text -> {
+      if (MarkdownParallelParser.isEnabled(text)) {
+        return MarkdownParallelParser.parse(text.toString(), flavour);
+      }
+      return MarkdownGuardedParser.parse(text.toString(), flavour);
+    });
+  }
+
+  @NotNull
+  public static ASTNode parseInline(@NotNull IElementType type, @NotNull CharSequence buffer, @NotNull MarkdownFlavourDescriptor flavour) {
+    return ourInlineParseCache.get(type, buffer, flavour);
+  }
 
-    final ASTNode parseResult = new MarkdownParser(flavour)
-      .parse(MarkdownElementTypes.MARKDOWN_FILE, buffer.toString(), false);
-    ourLastParsingResult.set(new ParsingInfo(buffer, parseResult));
-    return parseResult;
+  /**
+   * Parses the blocks like {@link #parseContent} does, but bypasses the cache, so parsing many files once doesn't evict the trees in use
+   */
+  @NotNull
+  public static ASTNode parseContentUncached(@NotNull CharSequence buffer, @NotNull MarkdownFlavourDescriptor flavour) {
+    return MarkdownGuardedParser.parse(buffer.toString(), flavour);
   }
 
-  private static class ParsingInfo {
-    @NotNull final CharSequence myBuffer;
-    final int myBufferHash;
-    @NotNull final ASTNode myParseResult;
+  /**
+   * Parses the inlines like {@link #parseInline} does, but bypasses the cache
+   */
+  @NotNull
+  public static ASTNode parseInlineUncached(@NotNull IElementType type,
+                                            @NotNull CharSequence buffer,
+                                            @NotNull MarkdownFlavourDescriptor flavour) {
+    return MarkdownInlineParseCache.parse(type, buffer, flavour);
+  }
+
+  @NotNull
+  public static MarkdownParseCache getParseCache() {
+    return ourParseCache;
+  }
 
-    ParsingInfo(@NotNull CharSequence buffer, @NotNull ASTNode parseResult) {
-      myBuffer = buffer;
-      myBufferHash = myBuffer.hashCode();
-      myParseResult = parseResult;
-    }
+  @NotNull
+  public static MarkdownInlineParseCache getInlineParseCache() {
+    return ourInlineParseCache;
   }
 }
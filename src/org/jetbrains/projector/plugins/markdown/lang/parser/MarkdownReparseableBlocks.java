@@ -0,0 +1,242 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.parser;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.tree.IElementType;
+import org.intellij.markdown.ast.CompositeASTNode;
+import org.intellij.markdown.flavours.MarkdownFlavourDescriptor;
+import org.intellij.markdown.flavours.gfm.GFMTokenTypes;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.projector.plugins.markdown.lang.MarkdownElementType;
+import org.jetbrains.projector.plugins.markdown.lang.MarkdownElementTypes;
+import org.jetbrains.projector.plugins.markdown.lang.MarkdownTokenTypes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides whether an edited top-level block can be reparsed on its own instead of the whole file.
+ * <p>
+ * A block starting at a line start of the document parses the same way alone as in the document,
+ * so it's enough to check that the edit doesn't move block boundaries: the new text must still be exactly one block of the same type,
+ * and the block must be separated from its neighbours by blank lines (list items by markers of the same width),
+ * so no line can join it or leave it by a lazy continuation.
+ */
+public final class MarkdownReparseableBlocks {
+  private MarkdownReparseableBlocks() {
+  }
+
+  /**
+   * @return the block of the given type spanning the whole text or {@code null} if the text isn't a single such block
+   */
+  @Nullable
+  public static org.intellij.markdown.ast.ASTNode parseBlock(@NotNull IElementType type,
+                                                            @NotNull CharSequence text,
+                                                            @NotNull MarkdownFlavourDescriptor flavour) {
+    org.intellij.markdown.ast.ASTNode block = getSingleChild(MarkdownParserManager.parseContent(text, flavour), text.length());
+    if (block != null && type == MarkdownElementTypes.LIST_ITEM && isList(MarkdownElementType.platformType(block.getType()))) {
+      block = getSingleChild(block, text.length());
+    }
+
+    if (block == null || MarkdownElementType.platformType(block.getType()) != type) {
+      return null;
+    }
+
+    // an unclosed fence takes all the following lines of the document
+    if (type == MarkdownElementTypes.CODE_FENCE) {
+      List<org.intellij.markdown.ast.ASTNode> children = block.getChildren();
+      if (children.isEmpty() || MarkdownElementType.platformType(children.get(children.size() - 1).getType()) != MarkdownTokenTypes.CODE_FENCE_END) {
+        return null;
+      }
+    }
+
+    return block;
+  }
+
+  /**
+   * @return a copy of the table tree with the inline trees of its cells, so the table PSI is built in one builder pass
+   * instead of expanding a chameleon per cell; each cell is still parsed on its own, through the inline parse cache
+   */
+  @NotNull
+  public static org.intellij.markdown.ast.ASTNode withCellContents(@NotNull org.intellij.markdown.ast.ASTNode node,
+                                                                  @NotNull CharSequence text,
+                                                                  @NotNull MarkdownFlavourDescriptor flavour) {
+    if (node.getType() == GFMTokenTypes.CELL && node.getStartOffset() < node.getEndOffset()) {
+      final CharSequence cellText = text.subSequence(node.getStartOffset(), node.getEndOffset());
+      final org.intellij.markdown.ast.ASTNode cell = MarkdownParserManager.parseInline(GFMTokenTypes.CELL, cellText, flavour);
+      if (!cell.getChildren().isEmpty()) {
+        return MarkdownParallelParser.shift(cell, node.getStartOffset());
+      }
+    }
+    if (node.getChildren().isEmpty()) {
+      return MarkdownParallelParser.shift(node, 0);
+    }
+
+    final List<org.intellij.markdown.ast.ASTNode> children = new ArrayList<>(node.getChildren().size());
+    for (org.intellij.markdown.ast.ASTNode child : node.getChildren()) {
+      children.add(withCellContents(child, text, flavour));
+    }
+    return new CompositeASTNode(node.getType(), children);
+  }
+
+  public static boolean isParsable(@NotNull IElementType type, @Nullable ASTNode parent, @NotNull CharSequence buffer) {
+    if (parent == null || !isTopLevel(type, parent)) {
+      return false;
+    }
+
+    return parseBlock(type, buffer, getFlavour(parent.getPsi())) != null;
+  }
+
+  public static boolean isValidReparse(@NotNull ASTNode oldNode, @NotNull ASTNode newNode) {
+    if (!isAtLineStart(oldNode)) {
+      return false;
+    }
+
+    if (oldNode.getElementType() != MarkdownElementTypes.LIST_ITEM) {
+      return isPrecededByBlankLine(oldNode) && isFollowedByBlankLine(oldNode);
+    }
+
+    MarkdownFlavourDescriptor flavour = getFlavour(oldNode.getPsi());
+    String oldMarker = getListItemMarker(oldNode.getChars(), flavour);
+    return oldMarker != null && oldMarker.equals(getListItemMarker(newNode.getChars(), flavour)) && isFollowedByListItemOrBlankLine(oldNode);
+  }
+
+  @NotNull
+  public static MarkdownFlavourDescriptor getFlavour(@Nullable PsiElement element) {
+    PsiFile file = element != null ? element.getContainingFile() : null;
+    MarkdownFlavourDescriptor flavour = file != null ? file.getUserData(MarkdownParserManager.FLAVOUR_DESCRIPTION) : null;
+    return flavour != null ? flavour : MarkdownParserManager.FLAVOUR;
+  }
+
+  private static boolean isTopLevel(@NotNull IElementType type, @NotNull ASTNode parent) {
+    if (type == MarkdownElementTypes.LIST_ITEM) {
+      if (!isList(parent.getElementType())) {
+        return false;
+      }
+      parent = parent.getTreeParent();
+    }
+
+    return parent != null && parent.getElementType() == MarkdownElementTypes.MARKDOWN_FILE;
+  }
+
+  private static boolean isList(@Nullable IElementType type) {
+    return type == MarkdownElementTypes.UNORDERED_LIST || type == MarkdownElementTypes.ORDERED_LIST;
+  }
+
+  /**
+   * @return the marker with the following spaces, which define the list type and the indent of the item content
+   */
+  @Nullable
+  private static String getListItemMarker(@NotNull CharSequence text, @NotNull MarkdownFlavourDescriptor flavour) {
+    org.intellij.markdown.ast.ASTNode item = parseBlock(MarkdownElementTypes.LIST_ITEM, text, flavour);
+    if (item == null || item.getChildren().isEmpty()) {
+      return null;
+    }
+
+    int end = item.getChildren().get(0).getEndOffset();
+    while (end < text.length() && (text.charAt(end) == ' ' || text.charAt(end) == '\t')) {
+      end++;
+    }
+    return text.subSequence(0, end).toString();
+  }
+
+  @Nullable
+  private static org.intellij.markdown.ast.ASTNode getSingleChild(@NotNull org.intellij.markdown.ast.ASTNode node, int length) {
+    List<org.intellij.markdown.ast.ASTNode> children = node.getChildren();
+    if (children.size() != 1) {
+      return null;
+    }
+
+    org.intellij.markdown.ast.ASTNode child = children.get(0);
+    return child.getStartOffset() == 0 && child.getEndOffset() == length ? child : null;
+  }
+
+  private static boolean isAtLineStart(@NotNull ASTNode node) {
+    ASTNode prev = node.getTreePrev();
+    while (prev == null && node.getTreeParent() != null && node.getTreeParent().getElementType() != MarkdownElementTypes.MARKDOWN_FILE) {
+      node = node.getTreeParent();
+      prev = node.getTreePrev();
+    }
+    return prev == null || prev.getElementType() == MarkdownTokenTypes.EOL;
+  }
+
+  private static boolean isPrecededByBlankLine(@NotNull ASTNode node) {
+    ASTNode prev = node.getTreePrev();
+    if (prev == null) {
+      return true;
+    }
+
+    prev = skipWhitespacesBackward(prev.getTreePrev());
+    return prev == null || prev.getElementType() == MarkdownTokenTypes.EOL;
+  }
+
+  private static boolean isFollowedByBlankLine(@NotNull ASTNode node) {
+    ASTNode next = skipWhitespacesForward(node.getTreeNext());
+    if (next == null) {
+      return true;
+    }
+    if (next.getElementType() != MarkdownTokenTypes.EOL) {
+      return false;
+    }
+
+    next = skipWhitespacesForward(next.getTreeNext());
+    return next == null || next.getElementType() == MarkdownTokenTypes.EOL;
+  }
+
+  private static boolean isFollowedByListItemOrBlankLine(@NotNull ASTNode item) {
+    ASTNode next = skipWhitespacesForward(item.getTreeNext());
+    if (next == null) {
+      return isFollowedByBlankLine(item.getTreeParent());
+    }
+    if (next.getElementType() != MarkdownTokenTypes.EOL) {
+      return false;
+    }
+
+    next = skipWhitespacesForward(next.getTreeNext());
+    if (next == null) {
+      return isFollowedByBlankLine(item.getTreeParent());
+    }
+    return next.getElementType() == MarkdownTokenTypes.EOL || next.getElementType() == MarkdownElementTypes.LIST_ITEM;
+  }
+
+  @Nullable
+  private static ASTNode skipWhitespacesForward(@Nullable ASTNode node) {
+    while (node != null && node.getElementType() == MarkdownTokenTypes.WHITE_SPACE) {
+      node = node.getTreeNext();
+    }
+    return node;
+  }
+
+  @Nullable
+  private static ASTNode skipWhitespacesBackward(@Nullable ASTNode node) {
+    while (node != null && node.getElementType() == MarkdownTokenTypes.WHITE_SPACE) {
+      node = node.getTreePrev();
+    }
+    return node;
+  }
+}
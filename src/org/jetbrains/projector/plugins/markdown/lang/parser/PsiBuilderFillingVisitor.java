@@ -28,11 +28,18 @@ import org.intellij.markdown.IElementType;
 import org.intellij.markdown.MarkdownElementTypes;
 import org.intellij.markdown.ast.ASTNode;
 import org.intellij.markdown.ast.LeafASTNode;
-import org.intellij.markdown.ast.visitors.RecursiveVisitor;
+import org.intellij.markdown.flavours.gfm.GFMElementTypes;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.projector.plugins.markdown.lang.MarkdownElementType;
 
-public class PsiBuilderFillingVisitor extends RecursiveVisitor {
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Fills the builder with markers of the parsed tree. The tree is walked with an explicit stack, as it can be arbitrarily deep.
+ */
+public class PsiBuilderFillingVisitor {
   @NotNull
   private final PsiBuilder builder;
 
@@ -40,26 +47,49 @@ public class PsiBuilderFillingVisitor extends RecursiveVisitor {
     this.builder = builder;
   }
 
-  @Override
   public void visitNode(@NotNull ASTNode node) {
+    if (!needsMarker(node)) {
+      return;
+    }
+
+    final Deque<OpenNode> stack = new ArrayDeque<>();
+    stack.push(open(node));
+    while (!stack.isEmpty()) {
+      final OpenNode current = stack.peek();
+      final List<ASTNode> children = current.node.getChildren();
+      if (current.nextChild < children.size()) {
+        final ASTNode child = children.get(current.nextChild++);
+        // top-level tables are chameleon tokens, see MarkdownToplevelLexer
+        final boolean isTableToken =
+          child.getType() == GFMElementTypes.TABLE && current.node.getType() == MarkdownElementTypes.MARKDOWN_FILE;
+        if (!isTableToken && needsMarker(child)) {
+          stack.push(open(child));
+        }
+        continue;
+      }
+
+      stack.pop();
+      ensureBuilderInPosition(current.node.getEndOffset());
+      current.marker.done(MarkdownElementType.platformType(current.node.getType()));
+    }
+  }
+
+  private static boolean needsMarker(@NotNull ASTNode node) {
     if (node instanceof LeafASTNode) {
       /* a hack for the link reference definitions:
        * they are being parsed independent from link references and
        * the link titles and urls are tokens instead of composite elements
        */
       final IElementType type = node.getType();
-      if (type != MarkdownElementTypes.LINK_LABEL && type != MarkdownElementTypes.LINK_DESTINATION) {
-        return;
-      }
+      return type == MarkdownElementTypes.LINK_LABEL || type == MarkdownElementTypes.LINK_DESTINATION;
     }
+    return true;
+  }
 
+  @NotNull
+  private OpenNode open(@NotNull ASTNode node) {
     ensureBuilderInPosition(node.getStartOffset());
-    final PsiBuilder.Marker marker = builder.mark();
-
-    super.visitNode(node);
-
-    ensureBuilderInPosition(node.getEndOffset());
-    marker.done(MarkdownElementType.platformType(node.getType()));
+    return new OpenNode(node, builder.mark());
   }
 
   private void ensureBuilderInPosition(int position) {
@@ -71,4 +101,15 @@ public class PsiBuilderFillingVisitor extends RecursiveVisitor {
       throw new AssertionError("parsed tree and lexer are unsynchronized");
     }
   }
+
+  private static class OpenNode {
+    @NotNull final ASTNode node;
+    @NotNull final PsiBuilder.Marker marker;
+    int nextChild;
+
+    OpenNode(@NotNull ASTNode node, @NotNull PsiBuilder.Marker marker) {
+      this.node = node;
+      this.marker = marker;
+    }
+  }
 }
@@ -39,7 +39,7 @@ public class MarkdownASTFactory extends ASTFactory {
   @Override
   public CompositeElement createComposite(@NotNull IElementType type) {
     if (type == MarkdownElementTypes.CODE_FENCE) {
-      return new MarkdownCodeFenceImpl(type);
+      return new MarkdownCodeFenceImpl(type, null);
     }
 
     return super.createComposite(type);
@@ -28,7 +28,7 @@ import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.*;
-import com.intellij.psi.impl.source.tree.CompositePsiElement;
+import com.intellij.psi.impl.source.tree.LazyParseablePsiElement;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.util.IncorrectOperationException;
@@ -44,9 +44,12 @@ import java.util.Arrays;
 import java.util.Objects;
 import java.util.stream.Collectors;
 
-public class MarkdownCodeFenceImpl extends CompositePsiElement implements PsiLanguageInjectionHost, MarkdownPsiElement {
-  public MarkdownCodeFenceImpl(IElementType type) {
-    super(type);
+public class MarkdownCodeFenceImpl extends LazyParseablePsiElement implements PsiLanguageInjectionHost, MarkdownPsiElement {
+  /**
+   * @param buffer text of the fence to parse on demand or {@code null} if the fence is being built by the parser
+   */
+  public MarkdownCodeFenceImpl(@NotNull IElementType type, @Nullable CharSequence buffer) {
+    super(type, buffer);
   }
 
   @Override
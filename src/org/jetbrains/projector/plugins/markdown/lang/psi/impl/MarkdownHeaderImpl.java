@@ -66,7 +66,7 @@ public class MarkdownHeaderImpl extends MarkdownStubBasedPsiElementBase<Markdown
   @NotNull
   @Override
   public ItemPresentation getPresentation() {
-    String headerText = getHeaderText();
+    String headerText = getName();
     String text = headerText == null ? "Invalid header: " + getText() : headerText;
 
     return new ColoredItemPresentation() {
@@ -106,7 +106,10 @@ public class MarkdownHeaderImpl extends MarkdownStubBasedPsiElementBase<Markdown
   }
 
   public int getHeaderNumber() {
-    final IElementType type = getNode().getElementType();
+    return getHeaderNumber(getElementType());
+  }
+
+  private static int getHeaderNumber(@NotNull IElementType type) {
     if (MarkdownTokenTypeSets.HEADER_LEVEL_1_SET.contains(type)) {
       return 1;
     }
@@ -131,6 +134,22 @@ public class MarkdownHeaderImpl extends MarkdownStubBasedPsiElementBase<Markdown
 
   @Override
   public String getName() {
-    return getHeaderText();
+    final MarkdownHeaderStubElement stub = getHeaderStub();
+    return stub != null ? stub.getIndexedName() : getHeaderText();
+  }
+
+  @Override
+  public int getTextOffset() {
+    final MarkdownHeaderStubElement stub = getHeaderStub();
+    return stub != null ? stub.getTextOffset() : super.getTextOffset();
+  }
+
+  /**
+   * The stub is kept until the AST is loaded, the header data is read from it until then
+   */
+  @Nullable
+  private MarkdownHeaderStubElement getHeaderStub() {
+    final MarkdownStubElement stub = getGreenStub();
+    return stub instanceof MarkdownHeaderStubElement ? (MarkdownHeaderStubElement)stub : null;
   }
 }
@@ -24,37 +24,59 @@
 package org.jetbrains.projector.plugins.markdown.lang.references
 
 import com.intellij.openapi.project.Project
-import com.intellij.openapi.util.text.StringUtil
 import com.intellij.psi.PsiElement
 import com.intellij.psi.PsiFile
 import com.intellij.psi.PsiPolyVariantReference
-import com.intellij.psi.stubs.StubIndex
-import org.jetbrains.projector.plugins.markdown.lang.index.MarkdownHeadersIndex
+import com.intellij.psi.SyntaxTraverser
+import com.intellij.psi.impl.source.PsiFileImpl
+import com.intellij.psi.util.CachedValueProvider
+import com.intellij.psi.util.CachedValuesManager
+import com.intellij.util.io.URLUtil
+import org.jetbrains.projector.plugins.markdown.lang.MarkdownLazyElementType
+import org.jetbrains.projector.plugins.markdown.lang.MarkdownTokenTypeSets
+import org.jetbrains.projector.plugins.markdown.lang.index.MarkdownHeaderAnchorsIndex
+import org.jetbrains.projector.plugins.markdown.lang.psi.impl.MarkdownHeaderImpl
+import org.jetbrains.projector.plugins.markdown.lang.stubs.impl.MarkdownHeaderStubElement
 
 interface MarkdownAnchorReference : PsiPolyVariantReference {
   companion object {
-    fun getPsiHeaders(project: Project, text: String, psiFile: PsiFile?): Collection<PsiElement> {
-      // optimization: trying to find capitalized header
-      val suggestedHeader = StringUtil.replace(text, "-", " ")
-      var headers: Collection<PsiElement> =
-        MarkdownHeadersIndex.collectFileHeaders(StringUtil.capitalize(suggestedHeader), project, psiFile)
-      if (headers.isNotEmpty()) return headers
-
-      headers = MarkdownHeadersIndex.collectFileHeaders(StringUtil.capitalizeWords(suggestedHeader, true), project, psiFile)
-      if (headers.isNotEmpty()) return headers
-
-      // header search
-      headers = StubIndex.getInstance().getAllKeys(MarkdownHeadersIndex.KEY, project)
-        .filter { dashed(it) == text }
-        .flatMap { MarkdownHeadersIndex.collectFileHeaders(it, project, psiFile) }
-
-      return headers
+    private val NON_ANCHOR_CHARS = Regex("[^\\w\\- ]")
+
+    /**
+     * Headers with the anchor of the link, so `#Foo-Bar` and `#foo%20bar` resolve the `Foo Bar` header as well
+     */
+    fun getPsiHeaders(project: Project, text: String, psiFile: PsiFile?): Collection<PsiElement> =
+      MarkdownHeaderAnchorsIndex.collectHeaders(normalizeLinkAnchor(text), project, psiFile)
+
+    /**
+     * Anchors of the file headers, read from the stub tree unless the file AST is loaded
+     */
+    fun getFileAnchors(psiFile: PsiFile): List<String> = CachedValuesManager.getCachedValue(psiFile) {
+      CachedValueProvider.Result.create(collectFileAnchors(psiFile), psiFile)
+    }
+
+    private fun collectFileAnchors(psiFile: PsiFile): List<String> {
+      val stubTree = (psiFile as? PsiFileImpl)?.stubTree
+      if (stubTree != null) {
+        return stubTree.plainList.mapNotNull { (it as? MarkdownHeaderStubElement)?.anchor }
+      }
+
+      // headers are never inside inline content, so it is not parsed
+      return SyntaxTraverser.astTraverser(psiFile.node)
+        .expand { it.elementType !is MarkdownLazyElementType && it.elementType !in MarkdownTokenTypeSets.HEADERS }
+        .filter { it.elementType in MarkdownTokenTypeSets.HEADERS }
+        .mapNotNull { node -> (node.psi as? MarkdownHeaderImpl)?.name?.let { dashed(it) } }
     }
 
     fun dashed(it: String): String =
       it.toLowerCase()
         .trimStart()
-        .replace(Regex("[^\\w\\- ]"), "")
+        .replace(NON_ANCHOR_CHARS, "")
         .replace(" ", "-")
+
+    /**
+     * The header anchor which the anchor of a link refers to, links may capitalize anchors and escape their characters
+     */
+    fun normalizeLinkAnchor(anchor: String): String = dashed(URLUtil.unescapePercentSequences(anchor))
   }
 }
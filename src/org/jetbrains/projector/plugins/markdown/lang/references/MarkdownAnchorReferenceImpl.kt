@@ -27,12 +27,9 @@ import com.intellij.codeInsight.daemon.EmptyResolveMessageProvider
 import com.intellij.openapi.util.TextRange
 import com.intellij.psi.*
 import com.intellij.psi.impl.source.resolve.reference.impl.providers.FileReference
-import com.intellij.psi.search.GlobalSearchScope
 import com.intellij.psi.stubs.StubIndex
-import com.intellij.util.Processor
 import org.jetbrains.projector.plugins.markdown.MarkdownBundle
-import org.jetbrains.projector.plugins.markdown.lang.index.MarkdownHeadersIndex
-import org.jetbrains.projector.plugins.markdown.lang.psi.impl.MarkdownHeaderImpl
+import org.jetbrains.projector.plugins.markdown.lang.index.MarkdownHeaderAnchorsIndex
 
 class MarkdownAnchorReferenceImpl internal constructor(
   private val myAnchor: String,
@@ -60,19 +57,12 @@ class MarkdownAnchorReferenceImpl internal constructor(
   override fun getCanonicalText(): String = myAnchor
 
   override fun getVariants(): Array<Any> {
-    val project = myPsiElement.project
-    val list = mutableListOf<String>()
-
-    StubIndex.getInstance().getAllKeys(MarkdownHeadersIndex.KEY, project)
-      .forEach { key ->
-        StubIndex.getInstance().processElements(MarkdownHeadersIndex.KEY, key, project,
-                                                file?.let { GlobalSearchScope.fileScope(it) },
-                                                MarkdownHeaderImpl::class.java,
-                                                Processor { list.add(MarkdownAnchorReference.dashed(key)) }
-        )
-      }
+    val file = file
+    if (file != null) {
+      return MarkdownAnchorReference.getFileAnchors(file).toTypedArray()
+    }
 
-    return list.toTypedArray()
+    return StubIndex.getInstance().getAllKeys(MarkdownHeaderAnchorsIndex.KEY, myPsiElement.project).toTypedArray()
   }
 
   override fun getUnresolvedMessagePattern(): String = if (file == null)
@@ -0,0 +1,74 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.references
+
+import com.intellij.openapi.application.QueryExecutorBase
+import com.intellij.psi.PsiFile
+import com.intellij.psi.PsiManager
+import com.intellij.psi.PsiReference
+import com.intellij.psi.search.GlobalSearchScope
+import com.intellij.psi.search.searches.ReferencesSearch
+import com.intellij.psi.util.PsiTreeUtil
+import com.intellij.util.Processor
+import org.jetbrains.projector.plugins.markdown.lang.index.MarkdownLinkGraph
+import org.jetbrains.projector.plugins.markdown.lang.psi.impl.MarkdownHeaderImpl
+import org.jetbrains.projector.plugins.markdown.lang.psi.impl.MarkdownLinkDestinationImpl
+
+/**
+ * Finds Markdown links to files and headers in the files which [org.jetbrains.projector.plugins.markdown.lang.index.MarkdownLinksIndex]
+ * lists for the target, no other file is loaded
+ */
+class MarkdownLinkReferencesSearcher : QueryExecutorBase<PsiReference, ReferencesSearch.SearchParameters>(true) {
+  override fun processQuery(queryParameters: ReferencesSearch.SearchParameters, consumer: Processor<in PsiReference>) {
+    val element = queryParameters.elementToSearch
+    val scope = queryParameters.effectiveSearchScope as? GlobalSearchScope ?: return
+
+    val anchor: String?
+    val file = when (element) {
+      is MarkdownHeaderImpl -> {
+        anchor = MarkdownAnchorReference.dashed(element.name ?: return)
+        element.containingFile.originalFile.virtualFile
+      }
+      is PsiFile -> {
+        anchor = null
+        element.originalFile.virtualFile
+      }
+      else -> return
+    } ?: return
+
+    val project = element.project
+    val psiManager = PsiManager.getInstance(project)
+    for (usage in MarkdownLinkGraph.getBacklinks(project, file, anchor, scope)) {
+      val psiFile = psiManager.findFile(usage.file) ?: continue
+      val destination = PsiTreeUtil.getParentOfType(psiFile.findElementAt(usage.link.offset), MarkdownLinkDestinationImpl::class.java)
+                        ?: continue
+
+      for (reference in destination.references) {
+        if (reference.isReferenceTo(element) && !consumer.process(reference)) {
+          return
+        }
+      }
+    }
+  }
+}
@@ -32,16 +32,31 @@ import org.jetbrains.projector.plugins.markdown.lang.stubs.MarkdownStubElementBa
 
 public class MarkdownHeaderStubElement extends MarkdownStubElementBase<MarkdownHeaderImpl> {
   @Nullable private final String myName;
+  @Nullable private final String myAnchor;
+  private final int myTextOffset;
 
   protected MarkdownHeaderStubElement(@NotNull StubElement parent,
                                       @NotNull IStubElementType elementType,
-                                      @Nullable String indexedName) {
+                                      @Nullable String indexedName,
+                                      @Nullable String anchor,
+                                      int textOffset) {
     super(parent, elementType);
     myName = indexedName;
+    myAnchor = anchor;
+    myTextOffset = textOffset;
   }
 
   @Nullable
-  String getIndexedName() {
+  public String getIndexedName() {
     return myName;
   }
+
+  @Nullable
+  public String getAnchor() {
+    return myAnchor;
+  }
+
+  public int getTextOffset() {
+    return myTextOffset;
+  }
 }
@@ -32,8 +32,10 @@ import com.intellij.psi.stubs.StubElement;
 import com.intellij.psi.stubs.StubInputStream;
 import com.intellij.psi.stubs.StubOutputStream;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.projector.plugins.markdown.lang.index.MarkdownHeaderAnchorsIndex;
 import org.jetbrains.projector.plugins.markdown.lang.index.MarkdownHeadersIndex;
 import org.jetbrains.projector.plugins.markdown.lang.psi.impl.MarkdownHeaderImpl;
+import org.jetbrains.projector.plugins.markdown.lang.references.MarkdownAnchorReference;
 import org.jetbrains.projector.plugins.markdown.lang.stubs.MarkdownStubElementType;
 
 import java.io.IOException;
@@ -59,30 +61,41 @@ public class MarkdownHeaderStubElementType extends MarkdownStubElementType<Markd
   @NotNull
   @Override
   public MarkdownHeaderStubElement createStub(@NotNull MarkdownHeaderImpl psi, StubElement parentStub) {
-    return new MarkdownHeaderStubElement(parentStub, this, psi.getName());
+    String name = psi.getName();
+    String anchor = name == null ? null : MarkdownAnchorReference.Companion.dashed(name);
+    return new MarkdownHeaderStubElement(parentStub, this, name, anchor, psi.getTextOffset());
   }
 
   @Override
   public void serialize(@NotNull MarkdownHeaderStubElement stub, @NotNull StubOutputStream dataStream) throws IOException {
     writeUTFFast(dataStream, stub.getIndexedName());
+    writeUTFFast(dataStream, stub.getAnchor());
+    dataStream.writeVarInt(stub.getTextOffset());
   }
 
   @NotNull
   @Override
   public MarkdownHeaderStubElement deserialize(@NotNull StubInputStream dataStream, StubElement parentStub) {
     String indexedName = null;
+    String anchor = null;
+    int textOffset = 0;
     try {
       indexedName = dataStream.readUTFFast();
+      anchor = dataStream.readUTFFast();
+      textOffset = dataStream.readVarInt();
     }
     catch (IOException e) {
       LOG.error("Cannot read data stream; ", e.getMessage());
     }
 
     String finalIndexedString = StringUtil.isEmpty(indexedName) ? null : indexedName;
+    String finalAnchor = StringUtil.isEmpty(anchor) ? null : anchor;
     return new MarkdownHeaderStubElement(
       parentStub,
       this,
-      finalIndexedString
+      finalIndexedString,
+      finalAnchor,
+      textOffset
     );
   }
 
@@ -90,6 +103,9 @@ public class MarkdownHeaderStubElementType extends MarkdownStubElementType<Markd
   public void indexStub(@NotNull MarkdownHeaderStubElement stub, @NotNull IndexSink sink) {
     String indexedName = stub.getIndexedName();
     if (indexedName != null) sink.occurrence(MarkdownHeadersIndex.Companion.getKEY(), indexedName);
+
+    String anchor = stub.getAnchor();
+    if (anchor != null) sink.occurrence(MarkdownHeaderAnchorsIndex.Companion.getKEY(), anchor);
   }
 
   private static void writeUTFFast(@NotNull StubOutputStream dataStream, String text) throws IOException {
@@ -112,6 +112,17 @@ public final class MarkdownApplicationSettings implements PersistentStateCompone
     myState.myHideErrors = hideErrors;
   }
 
+  /**
+   * PlantUML diagrams are rendered as SVG if the PlantUML jar supports it, as PNG otherwise
+   */
+  public boolean isPlantUMLSvg() {
+    return myState.myPlantUMLSvg;
+  }
+
+  public void setPlantUMLSvg(boolean plantUMLSvg) {
+    myState.myPlantUMLSvg = plantUMLSvg;
+  }
+
   @NotNull
   public static MarkdownApplicationSettings getInstance() {
     return ServiceManager.getService(MarkdownApplicationSettings.class);
@@ -139,5 +150,9 @@ public final class MarkdownApplicationSettings implements PersistentStateCompone
 
     @Attribute("HideErrors")
     private boolean myHideErrors = false;
+
+    // the system property is kept as the default for the installations which set it before the setting existed
+    @Attribute("PlantUMLSvg")
+    private boolean myPlantUMLSvg = "svg".equalsIgnoreCase(System.getProperty("projector.markdown.plantuml.format"));
   }
 }
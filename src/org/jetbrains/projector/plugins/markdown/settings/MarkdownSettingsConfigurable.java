@@ -104,7 +104,8 @@ public class MarkdownSettingsConfigurable implements SearchableConfigurable {
     return !form.getMarkdownCssSettings().equals(myMarkdownApplicationSettings.getMarkdownCssSettings()) ||
            !form.getMarkdownPreviewSettings().equals(myMarkdownApplicationSettings.getMarkdownPreviewSettings()) ||
            form.isDisableInjections() != myMarkdownApplicationSettings.isDisableInjections() ||
-           form.isHideErrors() != myMarkdownApplicationSettings.isHideErrors();
+           form.isHideErrors() != myMarkdownApplicationSettings.isHideErrors() ||
+           form.isPlantUMLSvg() != myMarkdownApplicationSettings.isPlantUMLSvg();
   }
 
   @Override
@@ -120,6 +121,7 @@ public class MarkdownSettingsConfigurable implements SearchableConfigurable {
     myMarkdownApplicationSettings.setMarkdownPreviewSettings(form.getMarkdownPreviewSettings());
     myMarkdownApplicationSettings.setDisableInjections(form.isDisableInjections());
     myMarkdownApplicationSettings.setHideErrors(form.isHideErrors());
+    myMarkdownApplicationSettings.setPlantUMLSvg(form.isPlantUMLSvg());
 
     ApplicationManager.getApplication().getMessageBus().syncPublisher(MarkdownApplicationSettings.SettingsChangedListener.TOPIC)
       .settingsChanged(myMarkdownApplicationSettings);
@@ -135,6 +137,7 @@ public class MarkdownSettingsConfigurable implements SearchableConfigurable {
     form.setMarkdownPreviewSettings(myMarkdownApplicationSettings.getMarkdownPreviewSettings());
     form.setDisableInjections(myMarkdownApplicationSettings.isDisableInjections());
     form.setHideErrors(myMarkdownApplicationSettings.isHideErrors());
+    form.setPlantUMLSvg(myMarkdownApplicationSettings.isPlantUMLSvg());
   }
 
   @Override
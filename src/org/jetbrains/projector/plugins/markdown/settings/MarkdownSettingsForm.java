@@ -55,6 +55,8 @@ import com.intellij.util.ui.UIUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.projector.plugins.markdown.MarkdownBundle;
+import org.jetbrains.projector.plugins.markdown.extensions.plantuml.PlantUMLRenderer;
+import org.jetbrains.projector.plugins.markdown.ui.preview.MarkdownCodeFenceRenderingQueue;
 import org.jetbrains.projector.plugins.markdown.ui.preview.MarkdownHtmlPanelProvider;
 import org.jetbrains.projector.plugins.markdown.ui.preview.projector.ProjectorMarkdownHtmlPanelProvider;
 import org.jetbrains.projector.plugins.markdown.ui.split.SplitFileEditor;
@@ -93,6 +95,7 @@ public class MarkdownSettingsForm implements MarkdownCssSettings.Holder, Markdow
   private JPanel myMultipleProvidersPreviewPanel;
   private LinkLabel myPlantUMLDownload;
   private JBLabel myPlantUMLStatusLabel;
+  private JBCheckBox myPlantUMLSvgCheckBox;
   private JBRadioButton myVerticalLayout;
   private JBRadioButton myHorizontalLayout;
   private JBLabel myVerticalSplitLabel;
@@ -156,6 +159,8 @@ public class MarkdownSettingsForm implements MarkdownCssSettings.Holder, Markdow
         .downloadFilesWithProgress(MarkdownSettingsConfigurable.getDirectoryToDownload().getAbsolutePath(), null, myMainPanel);
 
       updatePlantUMLLabel(true);
+      PlantUMLRenderer.INSTANCE.warmUp();
+      MarkdownCodeFenceRenderingQueue.INSTANCE.rendererChanged();
     }, null);
   }
 
@@ -377,6 +382,14 @@ public class MarkdownSettingsForm implements MarkdownCssSettings.Holder, Markdow
     myHideErrorsCheckbox.setSelected(hideErrors);
   }
 
+  public boolean isPlantUMLSvg() {
+    return myPlantUMLSvgCheckBox.isSelected();
+  }
+
+  public void setPlantUMLSvg(boolean plantUMLSvg) {
+    myPlantUMLSvgCheckBox.setSelected(plantUMLSvg);
+  }
+
   private static boolean isMultipleProviders() {
     return MarkdownHtmlPanelProvider.getProviders().length > 1;
   }
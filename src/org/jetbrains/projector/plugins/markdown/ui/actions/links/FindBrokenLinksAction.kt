@@ -0,0 +1,91 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.actions.links
+
+import com.intellij.notification.Notification
+import com.intellij.notification.NotificationType
+import com.intellij.openapi.actionSystem.AnAction
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.Task
+import com.intellij.openapi.project.Project
+import com.intellij.psi.PsiManager
+import com.intellij.psi.search.GlobalSearchScope
+import com.intellij.usageView.UsageInfo
+import com.intellij.usages.Usage
+import com.intellij.usages.UsageInfo2UsageAdapter
+import com.intellij.usages.UsageTarget
+import com.intellij.usages.UsageViewManager
+import com.intellij.usages.UsageViewPresentation
+import org.jetbrains.projector.plugins.markdown.MarkdownBundle
+import org.jetbrains.projector.plugins.markdown.lang.index.MarkdownBrokenLinksValidator
+
+/**
+ * Reports the Markdown links of the project which don't resolve and the validation throughput,
+ * the links are checked with the index and not with references
+ */
+class FindBrokenLinksAction : AnAction() {
+  override fun update(e: AnActionEvent) {
+    e.presentation.isEnabledAndVisible = e.project != null
+  }
+
+  override fun actionPerformed(e: AnActionEvent) {
+    val project = e.project ?: return
+
+    object : Task.Backgroundable(project, MarkdownBundle.message("markdown.broken.links.progress.title"), true) {
+      private var myResult: MarkdownBrokenLinksValidator.Result? = null
+
+      override fun run(indicator: ProgressIndicator) {
+        myResult = MarkdownBrokenLinksValidator(project, GlobalSearchScope.projectScope(project)).validate(indicator)
+      }
+
+      override fun onSuccess() {
+        myResult?.let { showResult(project, it) }
+      }
+    }.queue()
+  }
+
+  private fun showResult(project: Project, result: MarkdownBrokenLinksValidator.Result) {
+    val title = MarkdownBundle.message("markdown.broken.links.title")
+    val content = MarkdownBundle.message("markdown.broken.links.notification.content",
+                                         result.brokenLinks.size, result.fileCount, result.filesPerSecond,
+                                         result.linkCount, result.linksPerSecond)
+    Notification("Markdown", title, content, NotificationType.INFORMATION).notify(project)
+    if (result.brokenLinks.isEmpty()) {
+      return
+    }
+
+    val psiManager = PsiManager.getInstance(project)
+    val usages = result.brokenLinks.mapNotNull { brokenLink ->
+      val psiFile = psiManager.findFile(brokenLink.file) ?: return@mapNotNull null
+      val link = brokenLink.link
+      UsageInfo2UsageAdapter(UsageInfo(psiFile, link.offset, link.offset + link.length))
+    }
+
+    val presentation = UsageViewPresentation()
+    presentation.tabText = title
+    presentation.codeUsagesString = MarkdownBundle.message("markdown.broken.links.usages.text")
+    UsageViewManager.getInstance(project).showUsages(UsageTarget.EMPTY_ARRAY, usages.toTypedArray<Usage>(), presentation)
+  }
+}
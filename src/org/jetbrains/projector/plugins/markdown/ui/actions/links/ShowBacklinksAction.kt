@@ -0,0 +1,99 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.actions.links
+
+import com.intellij.openapi.actionSystem.AnAction
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.actionSystem.CommonDataKeys
+import com.intellij.openapi.fileEditor.OpenFileDescriptor
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.project.DumbService
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.roots.ProjectFileIndex
+import com.intellij.openapi.ui.popup.JBPopupFactory
+import com.intellij.openapi.util.Computable
+import com.intellij.openapi.util.ThrowableComputable
+import com.intellij.openapi.vfs.VfsUtilCore
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.search.GlobalSearchScope
+import com.intellij.psi.util.PsiTreeUtil
+import org.jetbrains.projector.plugins.markdown.MarkdownBundle
+import org.jetbrains.projector.plugins.markdown.lang.index.MarkdownLinkGraph
+import org.jetbrains.projector.plugins.markdown.lang.index.MarkdownLinkUsage
+import org.jetbrains.projector.plugins.markdown.lang.psi.impl.MarkdownHeaderImpl
+import org.jetbrains.projector.plugins.markdown.lang.references.MarkdownAnchorReference
+
+/**
+ * Lists the Markdown links to the header under the caret or to the current file
+ */
+class ShowBacklinksAction : AnAction() {
+  override fun update(e: AnActionEvent) {
+    val file = e.getData(CommonDataKeys.VIRTUAL_FILE)
+    e.presentation.isEnabledAndVisible = e.project != null && file != null && !file.isDirectory
+  }
+
+  override fun actionPerformed(e: AnActionEvent) {
+    val project = e.project ?: return
+    val file = e.getData(CommonDataKeys.VIRTUAL_FILE) ?: return
+    val anchor = getHeaderAnchor(e)
+
+    val search = ThrowableComputable<List<MarkdownLinkUsage>, RuntimeException> {
+      DumbService.getInstance(project).runReadActionInSmartMode(Computable {
+        MarkdownLinkGraph.getBacklinks(project, file, anchor, GlobalSearchScope.projectScope(project))
+      })
+    }
+    val usages = ProgressManager.getInstance()
+      .runProcessWithProgressSynchronously(search, MarkdownBundle.message("markdown.backlinks.progress.title"), true, project)
+
+    val target = if (anchor == null) file.name else "${file.name}#$anchor"
+    if (usages.isEmpty()) {
+      JBPopupFactory.getInstance().createMessage(MarkdownBundle.message("markdown.backlinks.not.found", target))
+        .showInBestPositionFor(e.dataContext)
+      return
+    }
+
+    JBPopupFactory.getInstance()
+      .createPopupChooserBuilder(usages.map { BacklinkItem(it, getPresentablePath(project, it.file)) })
+      .setTitle(MarkdownBundle.message("markdown.backlinks.popup.title", target))
+      .setItemChosenCallback { OpenFileDescriptor(project, it.usage.file, it.usage.link.offset).navigate(true) }
+      .createPopup()
+      .showInBestPositionFor(e.dataContext)
+  }
+
+  private fun getHeaderAnchor(e: AnActionEvent): String? {
+    val editor = e.getData(CommonDataKeys.EDITOR) ?: return null
+    val psiFile = e.getData(CommonDataKeys.PSI_FILE) ?: return null
+    val header = PsiTreeUtil.getParentOfType(psiFile.findElementAt(editor.caretModel.offset), MarkdownHeaderImpl::class.java)
+    return header?.name?.let { MarkdownAnchorReference.dashed(it) }
+  }
+
+  private fun getPresentablePath(project: Project, file: VirtualFile): String {
+    val root = ProjectFileIndex.getInstance(project).getContentRootForFile(file)
+    return root?.let { VfsUtilCore.getRelativePath(file, it) } ?: file.presentableUrl
+  }
+
+  private class BacklinkItem(val usage: MarkdownLinkUsage, private val path: String) {
+    override fun toString(): String = path
+  }
+}
@@ -28,18 +28,29 @@ import org.intellij.markdown.ast.ASTNode
 import org.intellij.markdown.ast.getTextInNode
 import org.intellij.markdown.html.GeneratingProvider
 import org.intellij.markdown.html.HtmlGenerator
+import org.jetbrains.projector.plugins.markdown.extensions.MarkdownCodeFenceCacheableProvider
 import org.jetbrains.projector.plugins.markdown.extensions.MarkdownCodeFencePluginGeneratingProvider
 import java.util.*
 
-internal class MarkdownCodeFenceGeneratingProvider(private val pluginCacheProviders: Array<MarkdownCodeFencePluginGeneratingProvider>) :
+internal class MarkdownCodeFenceGeneratingProvider(private val pluginCacheProviders: Array<MarkdownCodeFencePluginGeneratingProvider>,
+                                                  private val cacheCollector: MarkdownCodeFencePluginCacheCollector? = null) :
   GeneratingProvider {
 
   private fun pluginGeneratedHtml(language: String, codeFenceContent: String, codeFenceRawContent: String): String {
-    return pluginCacheProviders
-      .filter { it.isApplicable(language) }.stream()
-      .findFirst()
-      .map { it.generateHtml(codeFenceRawContent) }
-      .orElse(codeFenceContent)
+    val provider = pluginCacheProviders.firstOrNull { it.isApplicable(language) } ?: return codeFenceContent
+
+    if (provider is MarkdownCodeFenceCacheableProvider && !provider.isCached(codeFenceRawContent)) {
+      // failed outputs are shown again once they are retried, so the block is regenerated like for a placeholder
+      cacheCollector?.addPendingOutput()
+      if (MarkdownCodeFenceRenderingQueue.isFailed(provider, codeFenceRawContent)) {
+        return codeFenceContent
+      }
+
+      MarkdownCodeFenceRenderingQueue.submit(provider, codeFenceRawContent)
+      return "<span class=\"$PENDING_CLASS\">$codeFenceContent</span>"
+    }
+
+    return provider.generateHtml(codeFenceRawContent)
   }
 
   override fun processNode(visitor: HtmlGenerator.HtmlGeneratingVisitor, text: String, node: ASTNode) {
@@ -101,4 +112,11 @@ internal class MarkdownCodeFenceGeneratingProvider(private val pluginCacheProvid
 
   private fun codeFenceText(text: String, node: ASTNode): CharSequence =
     if (node.type != MarkdownTokenTypes.BLOCK_QUOTE) HtmlGenerator.leafText(text, node, false) else ""
+
+  companion object {
+    /**
+     * Class of the placeholder shown instead of code fence output which is being rendered
+     */
+    const val PENDING_CLASS = "code-fence-pending"
+  }
 }
@@ -25,83 +25,253 @@ package org.jetbrains.projector.plugins.markdown.ui.preview;
 
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.components.ServiceManager;
-import com.intellij.openapi.fileTypes.FileTypeRegistry;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.io.FileUtil;
-import com.intellij.openapi.util.registry.Registry;
-import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.openapi.vfs.VirtualFileEvent;
-import com.intellij.openapi.vfs.VirtualFileListener;
-import com.intellij.openapi.vfs.VirtualFileManager;
 import com.intellij.util.Alarm;
-import com.intellij.util.containers.ContainerUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.projector.plugins.markdown.extensions.MarkdownCodeFenceCacheableProvider;
 import org.jetbrains.projector.plugins.markdown.extensions.MarkdownCodeFencePluginGeneratingProvider;
-import org.jetbrains.projector.plugins.markdown.lang.MarkdownFileType;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import static com.intellij.util.ArrayUtilRt.EMPTY_FILE_ARRAY;
 
+/**
+ * Keeps the outputs of cacheable code fence plugins within a total size budget.
+ * <p>
+ * Providers name their outputs by the code fence content, so one file is shared by all markdown files showing the same diagram.
+ * The cache only tracks sizes and access times of those files in a manifest and evicts the least recently used ones
+ * as soon as a new output doesn't fit, so cache directories are never scanned.
+ * Files shown by open previews are never evicted, since previews and their cached blocks still reference them.
+ * Entries of files deleted behind the cache's back are dropped when the manifest is loaded or an evicted file turns out to be missing,
+ * so they don't take the budget.
+ */
 public class MarkdownCodeFencePluginCache implements Disposable {
-  @NotNull public static final String MARKDOWN_FILE_PATH_KEY = "markdown-md5-file-path";
+  private static final Logger LOG = Logger.getInstance(MarkdownCodeFencePluginCache.class);
+
+  private static final long CACHE_BUDGET_BYTES = Long.getLong("projector.markdown.codeFence.cache.bytes", 256L * 1024 * 1024);
+  private static final int MANIFEST_SAVE_INTERVAL = 60000;
 
-  @NotNull private final Alarm myAlarm = new Alarm(this);
-  @NotNull private final Collection<MarkdownCodeFencePluginCacheCollector> myCodeFencePluginCaches = ContainerUtil.newConcurrentSet();
-  @NotNull private final Collection<File> myAdditionalCacheToDelete = ContainerUtil.newConcurrentSet();
-  private final int MARKDOWN_CLEAR_CACHE_INTERVAL = 600000;
+  @NotNull private final Alarm myAlarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, this);
+  @NotNull private final File myManifestFile = new File(PathManager.getSystemPath(), "markdown" + File.separator + "cache-manifest.txt");
+
+  // access ordered, so the eldest entry is the least recently used one
+  @NotNull private final LinkedHashMap<String, Entry> myEntries = new LinkedHashMap<>(16, 0.75f, true);
+  // paths of the files used by the last generated HTML of each open preview, several previews of the same file are kept apart
+  @NotNull private final Map<Object, Set<String>> myAliveFiles = new HashMap<>();
+  private long myTotalSize;
+  private boolean myLoaded;
+  private boolean myDirty;
 
   public MarkdownCodeFencePluginCache() {
     if (!ApplicationManager.getApplication().isUnitTestMode()) {
-      scheduleClearCache();
+      scheduleSaveManifest();
     }
+  }
 
-    VirtualFileManager.getInstance().addVirtualFileListener(new VirtualFileListener() {
-      @Override
-      public void fileDeleted(@NotNull VirtualFileEvent event) {
-        if (FileTypeRegistry.getInstance().isFileOfType(event.getFile(), MarkdownFileType.INSTANCE)) {
-          myAdditionalCacheToDelete.addAll(processSourceFileToDelete(event.getFile(), ContainerUtil.emptyList()));
+  /**
+   * Marks cached files used by the last generated HTML of the preview as recently accessed and keeps them until the preview is closed
+   *
+   * @param preview the object generating HTML of a single preview
+   */
+  public void registerCacheProvider(@NotNull Object preview, @NotNull MarkdownCodeFencePluginCacheCollector cacheCollector) {
+    Collection<File> aliveCachedFiles = cacheCollector.getAliveCachedFiles();
+    long now = System.currentTimeMillis();
+    synchronized (myEntries) {
+      if (aliveCachedFiles.isEmpty()) {
+        myAliveFiles.remove(preview);
+        return;
+      }
+      myAliveFiles.put(preview, aliveCachedFiles.stream().map(File::getAbsolutePath).collect(Collectors.toSet()));
+
+      ensureLoaded();
+      for (File file : cacheCollector.getAliveCachedFiles()) {
+        Entry entry = myEntries.get(file.getAbsolutePath());
+        if (entry != null) {
+          entry.lastAccess = now;
+          myDirty = true;
         }
       }
-    });
+    }
   }
 
-  public Collection<File> collectFilesToRemove() {
-    return myCodeFencePluginCaches.stream()
-      .flatMap(cacheProvider -> processSourceFileToDelete(cacheProvider.getFile(), cacheProvider.getAliveCachedFiles()).stream())
-      .collect(Collectors.toList());
+  /**
+   * Allows evicting the files used by the preview once it's closed, other previews of the same file keep theirs
+   */
+  public void unregisterCacheProvider(@NotNull Object preview) {
+    synchronized (myEntries) {
+      myAliveFiles.remove(preview);
+    }
+  }
+
+  /**
+   * Registers a freshly rendered output file and evicts the least recently used files if the cache is over budget
+   */
+  public void addCachedFile(@NotNull File file) {
+    long size = file.length();
+    if (size == 0) return;
+
+    List<File> evicted = new ArrayList<>();
+    synchronized (myEntries) {
+      ensureLoaded();
+      String path = file.getAbsolutePath();
+      Entry previous = myEntries.put(path, new Entry(size, System.currentTimeMillis()));
+      myTotalSize += size - (previous != null ? previous.size : 0);
+      myDirty = true;
+
+      Iterator<Map.Entry<String, Entry>> iterator = myEntries.entrySet().iterator();
+      while (myTotalSize > CACHE_BUDGET_BYTES && iterator.hasNext()) {
+        Map.Entry<String, Entry> eldest = iterator.next();
+        if (eldest.getKey().equals(path) || isAlive(eldest.getKey())) continue;
+
+        myTotalSize -= eldest.getValue().size;
+        evicted.add(new File(eldest.getKey()));
+        iterator.remove();
+      }
+    }
+
+    boolean missing = false;
+    for (File evictedFile : evicted) {
+      missing |= !evictedFile.exists();
+      FileUtil.delete(evictedFile);
+    }
+    // the manifest is out of date, so other entries may be missing too and take the budget of existing files
+    if (missing) {
+      synchronized (myEntries) {
+        removeMissingFiles();
+      }
+    }
   }
 
-  public void registerCacheProvider(@NotNull MarkdownCodeFencePluginCacheCollector cacheCollector) {
-    myCodeFencePluginCaches.add(cacheCollector);
+  private void removeMissingFiles() {
+    Iterator<Map.Entry<String, Entry>> iterator = myEntries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Entry> entry = iterator.next();
+      if (!new File(entry.getKey()).exists()) {
+        myTotalSize -= entry.getValue().size;
+        iterator.remove();
+        myDirty = true;
+      }
+    }
   }
 
-  private void scheduleClearCache() {
-    myAlarm.addRequest(() -> {
-      Collection<File> filesToDelete = ContainerUtil.union(myAdditionalCacheToDelete, collectFilesToRemove());
-      FileUtil.asyncDelete(filesToDelete);
+  private boolean isAlive(@NotNull String path) {
+    for (Set<String> aliveFiles : myAliveFiles.values()) {
+      if (aliveFiles.contains(path)) return true;
+    }
+    return false;
+  }
+
+  private void ensureLoaded() {
+    if (myLoaded) return;
+    myLoaded = true;
+
+    if (!myManifestFile.exists()) {
+      adoptExistingFiles();
+      return;
+    }
 
-      clear();
+    List<String> lines;
+    try {
+      lines = FileUtil.loadLines(myManifestFile);
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot read markdown code fence cache manifest", e);
+      adoptExistingFiles();
+      return;
+    }
 
-      scheduleClearCache();
-    }, MARKDOWN_CLEAR_CACHE_INTERVAL);
+    List<Map.Entry<String, Entry>> loaded = new ArrayList<>(lines.size());
+    for (String line : lines) {
+      String[] parts = line.split(" ", 3);
+      if (parts.length != 3) continue;
+      try {
+        loaded.add(new AbstractMap.SimpleEntry<>(parts[2], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[0]))));
+      }
+      catch (NumberFormatException ignored) {
+      }
+    }
+    putAllByAccessTime(loaded);
+    removeMissingFiles();
+  }
+
+  /**
+   * Starts the manifest from the files already in the cache roots, dropping per source file directories of the old cache layout
+   */
+  private void adoptExistingFiles() {
+    List<File> legacyDirectories = new ArrayList<>();
+    List<Map.Entry<String, Entry>> existing = new ArrayList<>();
+    for (File root : getPluginSystemPaths()) {
+      for (File child : getChildren(root)) {
+        if (child.isDirectory()) {
+          legacyDirectories.add(child);
+        }
+        else {
+          existing.add(new AbstractMap.SimpleEntry<>(child.getAbsolutePath(), new Entry(child.length(), child.lastModified())));
+        }
+      }
+    }
+
+    FileUtil.asyncDelete(legacyDirectories);
+    putAllByAccessTime(existing);
+    myDirty = true;
   }
 
-  private void clear() {
-    myAdditionalCacheToDelete.clear();
-    myCodeFencePluginCaches.clear();
+  private void putAllByAccessTime(@NotNull List<Map.Entry<String, Entry>> entries) {
+    entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+    for (Map.Entry<String, Entry> entry : entries) {
+      Entry previous = myEntries.put(entry.getKey(), entry.getValue());
+      myTotalSize += entry.getValue().size - (previous != null ? previous.size : 0);
+    }
+  }
+
+  private void scheduleSaveManifest() {
+    myAlarm.addRequest(() -> {
+      saveManifest();
+
+      scheduleSaveManifest();
+    }, MANIFEST_SAVE_INTERVAL);
+  }
+
+  private void saveManifest() {
+    String content;
+    synchronized (myEntries) {
+      if (!myDirty) return;
+      myDirty = false;
+
+      content = myEntries.entrySet().stream()
+        .map(entry -> entry.getValue().lastAccess + " " + entry.getValue().size + " " + entry.getKey())
+        .collect(Collectors.joining("\n"));
+    }
+
+    try {
+      FileUtil.writeToFile(myManifestFile, content);
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot save markdown code fence cache manifest", e);
+    }
   }
 
   @Override
   public void dispose() {
     Disposer.dispose(myAlarm);
+    saveManifest();
   }
 
   public static MarkdownCodeFencePluginCache getInstance() {
@@ -116,32 +286,18 @@ public class MarkdownCodeFencePluginCache implements Disposable {
       .collect(Collectors.toList());
   }
 
-  private static Collection<File> processSourceFileToDelete(@NotNull VirtualFile sourceFile, @NotNull Collection<File> aliveCachedFiles) {
-    Collection<File> filesToDelete = new HashSet<>();
-    for (File codeFencePluginSystemPath : getPluginSystemPaths()) {
-      for (File sourceFileCacheDirectory : getChildren(codeFencePluginSystemPath)) {
-        if (isCachedSourceFile(sourceFileCacheDirectory, sourceFile) && aliveCachedFiles.isEmpty()) {
-          filesToDelete.add(sourceFileCacheDirectory);
-          continue;
-        }
-
-        for (File imgFile : getChildren(sourceFileCacheDirectory)) {
-          if (!isCachedSourceFile(sourceFileCacheDirectory, sourceFile) || aliveCachedFiles.contains(imgFile)) continue;
-
-          filesToDelete.add(imgFile);
-        }
-      }
-    }
-
-    return filesToDelete;
-  }
-
   private static File[] getChildren(@NotNull File directory) {
     File[] files = directory.listFiles();
     return files != null ? files : EMPTY_FILE_ARRAY;
   }
 
-  private static boolean isCachedSourceFile(@NotNull File sourceFileDir, @NotNull VirtualFile sourceFile) {
-    return sourceFileDir.getName().equals(MarkdownUtil.INSTANCE.md5(sourceFile.getPath(), MARKDOWN_FILE_PATH_KEY));
+  private static final class Entry {
+    private final long size;
+    private long lastAccess;
+
+    private Entry(long size, long lastAccess) {
+      this.size = size;
+      this.lastAccess = lastAccess;
+    }
   }
 }
@@ -34,6 +34,7 @@ import java.util.Objects;
 public class MarkdownCodeFencePluginCacheCollector {
   @NotNull private final VirtualFile myFile;
   @NotNull private final Collection<File> myAliveCachedFiles = new HashSet<>();
+  private boolean myHasPendingOutputs;
 
   public MarkdownCodeFencePluginCacheCollector(@NotNull VirtualFile file) {
     myFile = file;
@@ -53,7 +54,17 @@ public class MarkdownCodeFencePluginCacheCollector {
     myAliveCachedFiles.add(file);
   }
 
-  //need to override `equals()`/`hasCode()` to scan cache for the latest `cacheProvider` only, see 'MarkdownCodeFencePluginCache.registerCacheProvider()'
+  /**
+   * @return {@code true} if some output is still being rendered or is going to be rendered again, so the HTML isn't final
+   */
+  public boolean hasPendingOutputs() {
+    return myHasPendingOutputs;
+  }
+
+  public void addPendingOutput() {
+    myHasPendingOutputs = true;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
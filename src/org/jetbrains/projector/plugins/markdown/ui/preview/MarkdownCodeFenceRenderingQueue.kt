@@ -0,0 +1,167 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview
+
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.intellij.util.messages.Topic
+import org.jetbrains.projector.plugins.markdown.extensions.MarkdownCodeFenceCacheableProvider
+import org.jetbrains.projector.plugins.markdown.settings.MarkdownApplicationSettings
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/**
+ * Renders code fence outputs into the cache on a bounded background pool, so the preview isn't blocked by slow renderers.
+ * All uncached code fences met during HTML generation are queued at once and rendered in parallel.
+ * Subscribers of [RenderedListener.TOPIC] are notified when an output is ready or is about to be rendered again.
+ *
+ * Outputs which failed aren't rendered again until the renderer changes, the ones which timed out are retried with a backoff.
+ * A rendering which has timed out is cancelled and no longer waited for, so a hung renderer doesn't take a rendering slot forever.
+ *
+ * The number of rendering threads and the per-output timeout can be set via the
+ * `projector.markdown.codeFence.rendering.threads` and `projector.markdown.codeFence.rendering.timeout.ms` system properties.
+ */
+object MarkdownCodeFenceRenderingQueue {
+
+  private val LOG = Logger.getInstance(MarkdownCodeFenceRenderingQueue::class.java)
+
+  private const val MAX_FAILED_COUNT = 1000
+  private const val MAX_RETRY_DELAY_MS = 30 * 60_000L
+
+  private val threadCount = Integer.getInteger("projector.markdown.codeFence.rendering.threads",
+                                               Runtime.getRuntime().availableProcessors()).coerceAtLeast(1)
+
+  private val timeoutMs = java.lang.Long.getLong("projector.markdown.codeFence.rendering.timeout.ms", 60_000L)
+
+  private val executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Markdown Code Fence Rendering", threadCount)
+
+  private val pending = ConcurrentHashMap.newKeySet<Pair<Class<*>, String>>()
+
+  // outputs which weren't produced, they aren't rendered again until the retry time
+  private val failed = ConcurrentHashMap<Pair<Class<*>, String>, Failure>()
+
+  init {
+    ApplicationManager.getApplication().messageBus.connect().subscribe(
+      MarkdownApplicationSettings.SettingsChangedListener.TOPIC,
+      object : MarkdownApplicationSettings.SettingsChangedListener {
+        override fun settingsChanged(settings: MarkdownApplicationSettings) = rendererChanged()
+      }
+    )
+  }
+
+  fun isFailed(provider: MarkdownCodeFenceCacheableProvider, text: String): Boolean {
+    val key = provider.javaClass to text
+    val failure = failed[key] ?: return false
+    if (System.currentTimeMillis() < failure.retryTime) {
+      return true
+    }
+    return !failed.remove(key, failure)
+  }
+
+  /**
+   * Renders failed outputs again, e.g. when another renderer is downloaded or the settings change
+   */
+  fun rendererChanged() {
+    failed.clear()
+    publishRendered()
+  }
+
+  fun submit(provider: MarkdownCodeFenceCacheableProvider, text: String) {
+    val key = provider.javaClass to text
+    if (isFailed(provider, text) || !pending.add(key)) {
+      return
+    }
+
+    executor.execute {
+      val timedOut = render(provider, text)
+
+      if (provider.isCached(text)) {
+        failed.remove(key)
+      }
+      else {
+        if (failed.size >= MAX_FAILED_COUNT) {
+          failed.clear()
+        }
+
+        if (timedOut) {
+          val attempts = (failed[key]?.attempts ?: 0) + 1
+          val retryDelay = (timeoutMs shl (attempts - 1).coerceAtMost(20)).coerceAtMost(MAX_RETRY_DELAY_MS)
+          failed[key] = Failure(attempts, System.currentTimeMillis() + retryDelay)
+          AppExecutorUtil.getAppScheduledExecutorService().schedule(Runnable { publishRendered() }, retryDelay, TimeUnit.MILLISECONDS)
+
+          LOG.warn("Code fence rendering by ${provider.javaClass.simpleName} has timed out after $timeoutMs ms, " +
+                   "retrying in $retryDelay ms")
+        }
+        else {
+          failed[key] = Failure(1, Long.MAX_VALUE)
+        }
+      }
+      pending.remove(key)
+
+      publishRendered()
+    }
+  }
+
+  private fun publishRendered() {
+    ApplicationManager.getApplication().messageBus.syncPublisher(RenderedListener.TOPIC).codeFenceRendered()
+  }
+
+  /**
+   * Renders the output on the application pool waiting for it up to the timeout, then cancels the rendering and stops waiting,
+   * so the rendering slot is freed even if the renderer ignores the interruption
+   *
+   * @return `true` if rendering has timed out
+   */
+  private fun render(provider: MarkdownCodeFenceCacheableProvider, text: String): Boolean {
+    val rendering = AppExecutorUtil.getAppExecutorService().submit(Callable { provider.renderToCache(text) })
+    try {
+      rendering.get(timeoutMs, TimeUnit.MILLISECONDS)
+    }
+    catch (e: TimeoutException) {
+      rendering.cancel(true)
+      return true
+    }
+    catch (e: ExecutionException) {
+      LOG.warn("Cannot render code fence", e.cause)
+    }
+    return false
+  }
+
+  /**
+   * @param retryTime time when the output is rendered again, [Long.MAX_VALUE] if it isn't
+   */
+  private class Failure(val attempts: Int, val retryTime: Long)
+
+  interface RenderedListener {
+    fun codeFenceRendered()
+
+    companion object {
+      val TOPIC: Topic<RenderedListener> = Topic.create("MarkdownCodeFenceRendered", RenderedListener::class.java)
+    }
+  }
+}
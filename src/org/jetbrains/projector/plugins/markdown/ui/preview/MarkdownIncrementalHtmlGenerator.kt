@@ -0,0 +1,169 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview
+
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.vfs.VirtualFile
+import org.intellij.markdown.MarkdownElementTypes
+import org.intellij.markdown.MarkdownTokenTypes
+import org.intellij.markdown.ast.ASTNode
+import org.intellij.markdown.ast.LeafASTNode
+import org.intellij.markdown.ast.accept
+import org.intellij.markdown.ast.getTextInNode
+import org.intellij.markdown.ast.visitors.RecursiveVisitor
+import org.intellij.markdown.html.HtmlGenerator
+import org.intellij.markdown.parser.LinkMap
+import org.intellij.markdown.parser.MarkdownParser
+import org.jetbrains.projector.plugins.markdown.lang.parser.MarkdownParserManager
+import java.io.File
+import java.net.URI
+
+/**
+ * Generates preview HTML for a single file, regenerating only the top-level blocks that changed since the previous call.
+ *
+ * Only the block structure of the whole document is parsed on each call. Inline parsing and HTML generation are done
+ * for changed blocks only: each block is parsed on its own and its HTML is cached with source positions relative
+ * to the block start, so blocks which are merely shifted by an edit above them are reused as well.
+ */
+class MarkdownIncrementalHtmlGenerator(private val file: VirtualFile) {
+
+  private var blockCache = HashMap<BlockKey, CachedBlock>()
+
+  private var lastBaseUri: URI? = null
+  private var lastWithProject = false
+  private var lastLinkDefinitions = ""
+
+  /**
+   * @param chars document text, preferably its immutable snapshot so the block structure is shared with the editor and PSI
+   */
+  @Synchronized
+  fun generateHtml(chars: CharSequence, project: Project?): String {
+    val text = chars.toString()
+    val parent = file.parent
+    val baseUri = if (parent != null) File(parent.path).toURI() else null
+
+    if (baseUri != lastBaseUri || (project != null) != lastWithProject) {
+      blockCache = HashMap()
+      lastBaseUri = baseUri
+      lastWithProject = project != null
+    }
+
+    val blockTree = MarkdownParserManager.parseContent(chars, MarkdownParserManager.FLAVOUR)
+    val linkMap = LinkMap.buildLinkMap(blockTree, text)
+    val linkDefinitions = collectLinkDefinitions(blockTree, text)
+    val cacheCollector = MarkdownCodeFencePluginCacheCollector(file)
+    val providers by lazy { MarkdownUtil.createHtmlGeneratingProviders(linkMap, baseUri, cacheCollector, project) }
+
+    val newCache = HashMap<BlockKey, CachedBlock>()
+    val html = StringBuilder(text.length * 2)
+    html.append("<body ").append(srcPosAttribute(0, text.length)).append('>')
+
+    for (child in blockTree.children) {
+      if (child is LeafASTNode) {
+        html.append(HtmlGenerator(text, child, providers, true).generateHtml())
+        continue
+      }
+
+      val blockStart = lineStartOffset(text, child.startOffset)
+      val blockText = text.substring(blockStart, child.endOffset)
+      // blocks which can't contain reference links don't depend on link definitions
+      val key = BlockKey(blockText, if (blockText.indexOf('[') >= 0) linkDefinitions else null)
+
+      val block = newCache[key] ?: blockCache[key] ?: generateBlock(blockText, linkMap, baseUri, project)
+      newCache[key] = block
+
+      block.aliveCachedFiles.forEach(cacheCollector::addAliveCachedFile)
+      MarkdownUtil.appendShiftedSrcPositions(html, block.html, blockStart)
+    }
+
+    html.append("</body>")
+
+    blockCache = newCache
+
+    MarkdownCodeFencePluginCache.getInstance().registerCacheProvider(this, cacheCollector)
+
+    return html.toString()
+  }
+
+  private fun generateBlock(blockText: String, linkMap: LinkMap, baseUri: URI?, project: Project?): CachedBlock {
+    val blockCacheCollector = MarkdownCodeFencePluginCacheCollector(file)
+    val providers = MarkdownUtil.createHtmlGeneratingProviders(linkMap, baseUri, blockCacheCollector, project)
+
+    val parsedBlock = MarkdownParser(MarkdownParserManager.FLAVOUR).buildMarkdownTreeFromString(blockText)
+    // leading indent is already emitted by the whitespace token of the document tree
+    val html = parsedBlock.children
+      .dropWhile { it.type == MarkdownTokenTypes.WHITE_SPACE }
+      .joinToString(separator = "") { HtmlGenerator(blockText, it, providers, true).generateHtml() }
+
+    return CachedBlock(html, blockCacheCollector.aliveCachedFiles.toList(), blockCacheCollector.hasPendingOutputs())
+  }
+
+  /**
+   * Drops cached blocks with code fence outputs which were still being rendered, so they are regenerated on the next call
+   *
+   * @return `true` if there were such blocks
+   */
+  @Synchronized
+  fun dropPendingBlocks(): Boolean = blockCache.values.removeIf { it.pending }
+
+  private fun collectLinkDefinitions(blockTree: ASTNode, text: String): String {
+    val definitions = StringBuilder()
+    blockTree.accept(object : RecursiveVisitor() {
+      override fun visitNode(node: ASTNode) {
+        if (node.type == MarkdownElementTypes.LINK_DEFINITION) {
+          definitions.append(node.getTextInNode(text)).append('\n')
+        }
+        else {
+          super.visitNode(node)
+        }
+      }
+    })
+
+    // reuse the previous instance so unchanged definitions are compared by identity in block keys
+    val result = definitions.toString()
+    if (result != lastLinkDefinitions) {
+      lastLinkDefinitions = result
+    }
+    return lastLinkDefinitions
+  }
+
+  private data class BlockKey(val text: String, val linkDefinitions: String?)
+
+  /**
+   * @param pending whether the block shows code fence outputs which are still being rendered or are going to be rendered again
+   */
+  private class CachedBlock(val html: String, val aliveCachedFiles: Collection<File>, val pending: Boolean)
+
+  companion object {
+    private fun srcPosAttribute(start: Int, end: Int): String = "${HtmlGenerator.SRC_ATTRIBUTE_NAME}=\"$start..$end\""
+
+    private fun lineStartOffset(text: String, offset: Int): Int {
+      var result = offset
+      while (result > 0 && text[result - 1].let { it == ' ' || it == '\t' }) {
+        result--
+      }
+      return result
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview;
+
+import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.ex.EditorEx;
+import com.intellij.openapi.editor.highlighter.EditorHighlighterFactory;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.TextEditor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.ui.EditorNotificationPanel;
+import com.intellij.ui.EditorNotifications;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.projector.plugins.markdown.MarkdownBundle;
+import org.jetbrains.projector.plugins.markdown.lang.MarkdownFileType;
+import org.jetbrains.projector.plugins.markdown.settings.MarkdownApplicationSettings;
+import org.jetbrains.projector.plugins.markdown.ui.split.SplitFileEditor;
+import org.jetbrains.projector.plugins.markdown.util.MarkdownLargeFileMode;
+
+public class MarkdownLargeFileNotificationProvider extends EditorNotifications.Provider<EditorNotificationPanel> {
+  private static final Key<EditorNotificationPanel> KEY = Key.create("Markdown.LargeFile.Notification");
+
+  @NotNull
+  private final Project myProject;
+
+  public MarkdownLargeFileNotificationProvider(@NotNull Project project) {
+    myProject = project;
+  }
+
+  @NotNull
+  @Override
+  public Key<EditorNotificationPanel> getKey() {
+    return KEY;
+  }
+
+  @Nullable
+  @Override
+  public EditorNotificationPanel createNotificationPanel(@NotNull VirtualFile file, @NotNull FileEditor fileEditor) {
+    if (!(fileEditor instanceof TextEditor) || file.getFileType() != MarkdownFileType.INSTANCE || !MarkdownLargeFileMode.isEnabled(file)) {
+      return null;
+    }
+
+    final EditorNotificationPanel panel = new EditorNotificationPanel();
+    panel.setText(MarkdownBundle.message("markdown.large.file.notification.text"));
+    panel.createActionLabel(MarkdownBundle.message("markdown.large.file.notification.enable.action.text"), () -> enableFullFeatures(file));
+    return panel;
+  }
+
+  private void enableFullFeatures(@NotNull VirtualFile file) {
+    MarkdownLargeFileMode.enableFullFeatures(file);
+
+    final Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+    if (document != null) {
+      for (Editor editor : EditorFactory.getInstance().getEditors(document, myProject)) {
+        if (editor instanceof EditorEx) {
+          ((EditorEx)editor).setHighlighter(EditorHighlighterFactory.getInstance().createEditorHighlighter(myProject, file));
+        }
+      }
+    }
+
+    final SplitFileEditor.SplitEditorLayout layout =
+      MarkdownApplicationSettings.getInstance().getMarkdownPreviewSettings().getSplitEditorLayout();
+    for (FileEditor editor : FileEditorManager.getInstance(myProject).getAllEditors(file)) {
+      if (editor instanceof MarkdownSplitEditor) {
+        ((MarkdownSplitEditor)editor).triggerLayoutChange(layout, false);
+      }
+    }
+
+    // injections are cached until the next PSI change
+    PsiManager.getInstance(myProject).dropPsiCaches();
+    DaemonCodeAnalyzer.getInstance(myProject).restart();
+    EditorNotifications.getInstance(myProject).updateNotifications(file);
+  }
+}
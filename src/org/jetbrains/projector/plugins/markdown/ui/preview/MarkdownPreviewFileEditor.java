@@ -48,6 +48,7 @@ import org.jetbrains.projector.plugins.markdown.settings.MarkdownApplicationSett
 import org.jetbrains.projector.plugins.markdown.settings.MarkdownCssSettings;
 import org.jetbrains.projector.plugins.markdown.settings.MarkdownPreviewSettings;
 import org.jetbrains.projector.plugins.markdown.ui.split.SplitFileEditor;
+import org.jetbrains.projector.plugins.markdown.util.MarkdownLargeFileMode;
 import org.owasp.html.HtmlPolicyBuilder;
 import org.owasp.html.PolicyFactory;
 import org.owasp.html.Sanitizers;
@@ -101,6 +102,8 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
   @Nullable
   private final Document myDocument;
   @NotNull
+  private final MarkdownIncrementalHtmlGenerator myHtmlGenerator;
+  @NotNull
   private final Alarm myPooledAlarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, this);
   @NotNull
   private final Alarm mySwingAlarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, this);
@@ -122,6 +125,7 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
     myProject = project;
     myFile = file;
     myDocument = FileDocumentManager.getInstance().getDocument(myFile);
+    myHtmlGenerator = new MarkdownIncrementalHtmlGenerator(myFile);
 
     if (myDocument != null) {
       myDocument.addDocumentListener(new DocumentListener() {
@@ -174,6 +178,13 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
     MessageBusConnection settingsConnection = ApplicationManager.getApplication().getMessageBus().connect(this);
     MarkdownApplicationSettings.SettingsChangedListener settingsChangedListener = new MyUpdatePanelOnSettingsChangedListener();
     settingsConnection.subscribe(MarkdownApplicationSettings.SettingsChangedListener.TOPIC, settingsChangedListener);
+    settingsConnection.subscribe(MarkdownCodeFenceRenderingQueue.RenderedListener.Companion.getTOPIC(), () -> {
+      if (myPanel != null && myHtmlGenerator.dropPendingBlocks()) {
+        // several outputs are usually rendered in parallel, so wait a bit to update them at once
+        myPooledAlarm.cancelAllRequests();
+        myPooledAlarm.addRequest(() -> updateHtml(true), PARSING_CALL_TIMEOUT_MS);
+      }
+    });
   }
 
   public void scrollToSrcOffset(final int offset) {
@@ -277,6 +288,7 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
 
   @Override
   public void dispose() {
+    MarkdownCodeFencePluginCache.getInstance().unregisterCacheProvider(myHtmlGenerator);
     if (myPanel == null) {
       return;
     }
@@ -323,7 +335,7 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
       return;
     }
 
-    final String html = MarkdownUtil.INSTANCE.generateMarkdownHtml(myFile, myDocument.getText(), myProject);
+    final String html = myHtmlGenerator.generateHtml(myDocument.getImmutableCharSequence(), myProject);
 
     // EA-75860: The lines to the top may be processed slowly; Since we're in pooled thread, we can be disposed already.
     if (!myFile.isValid() || Disposer.isDisposed(this)) {
@@ -395,6 +407,10 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
   }
 
   private static boolean isPreviewShown(@NotNull Project project, @NotNull VirtualFile file) {
+    if (MarkdownLargeFileMode.isEnabled(file)) {
+      return false;
+    }
+
     MarkdownSplitEditorProvider provider = FileEditorProvider.EP_FILE_EDITOR_PROVIDER.findExtension(MarkdownSplitEditorProvider.class);
     if (provider == null) {
       return true;
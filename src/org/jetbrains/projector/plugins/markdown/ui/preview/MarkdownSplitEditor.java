@@ -27,11 +27,13 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.event.CaretEvent;
 import com.intellij.openapi.editor.event.CaretListener;
+import com.intellij.openapi.fileEditor.FileEditorState;
 import com.intellij.openapi.fileEditor.TextEditor;
 import com.intellij.pom.Navigatable;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.projector.plugins.markdown.settings.MarkdownApplicationSettings;
 import org.jetbrains.projector.plugins.markdown.ui.split.SplitFileEditor;
+import org.jetbrains.projector.plugins.markdown.util.MarkdownLargeFileMode;
 
 public class MarkdownSplitEditor extends SplitFileEditor<TextEditor, MarkdownPreviewFileEditor> implements TextEditor {
   private boolean myAutoScrollPreview = MarkdownApplicationSettings.getInstance().getMarkdownPreviewSettings().isAutoScrollPreview();
@@ -40,6 +42,10 @@ public class MarkdownSplitEditor extends SplitFileEditor<TextEditor, MarkdownPre
   public MarkdownSplitEditor(@NotNull TextEditor mainEditor, @NotNull MarkdownPreviewFileEditor secondEditor) {
     super(mainEditor, secondEditor);
 
+    if (MarkdownLargeFileMode.isEnabled(mainEditor.getFile())) {
+      triggerLayoutChange(SplitEditorLayout.FIRST, false);
+    }
+
     MarkdownApplicationSettings.SettingsChangedListener settingsChangedListener =
       new MarkdownApplicationSettings.SettingsChangedListener() {
         @Override
@@ -65,6 +71,16 @@ public class MarkdownSplitEditor extends SplitFileEditor<TextEditor, MarkdownPre
     mainEditor.getEditor().getCaretModel().addCaretListener(new MyCaretListener());
   }
 
+  @Override
+  public void setState(@NotNull FileEditorState state) {
+    if (state instanceof MyFileEditorState && MarkdownLargeFileMode.isEnabled(getMainEditor().getFile())) {
+      final MyFileEditorState splitState = (MyFileEditorState)state;
+      super.setState(new MyFileEditorState(SplitEditorLayout.FIRST.name(), splitState.getFirstState(), splitState.getSecondState()));
+      return;
+    }
+    super.setState(state);
+  }
+
   @NotNull
   @Override
   public String getName() {
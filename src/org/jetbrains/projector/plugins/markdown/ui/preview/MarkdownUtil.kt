@@ -24,19 +24,21 @@
 package org.jetbrains.projector.plugins.markdown.ui.preview
 
 import com.intellij.openapi.project.Project
-import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.util.io.DigestUtil
+import org.intellij.markdown.IElementType
 import org.intellij.markdown.MarkdownElementTypes
+import org.intellij.markdown.html.GeneratingProvider
 import org.intellij.markdown.html.HtmlGenerator
 import org.intellij.markdown.parser.LinkMap
-import org.intellij.markdown.parser.MarkdownParser
 import org.jetbrains.annotations.NonNls
 import org.jetbrains.projector.plugins.markdown.lang.parser.MarkdownParserManager
-import java.io.File
 import java.math.BigInteger
+import java.net.URI
 import java.util.*
 
 object MarkdownUtil {
+  private val SRC_POS_REGEX = Regex("${HtmlGenerator.SRC_ATTRIBUTE_NAME}=\"(\\d+)\\.\\.(\\d+)\"")
+
   fun md5(buffer: String?, @NonNls key: String): String {
     val md5 = DigestUtil.md5()
     Objects.requireNonNull(md5).update(buffer?.toByteArray(Charsets.UTF_8))
@@ -45,24 +47,34 @@ object MarkdownUtil {
     return bi.abs().toString(16)
   }
 
-  fun generateMarkdownHtml(file: VirtualFile, text: String, project: Project?): String {
-    val parent = file.parent
-    val baseUri = if (parent != null) File(parent.path).toURI() else null
-
-    val parsedTree = MarkdownParser(MarkdownParserManager.FLAVOUR).buildMarkdownTreeFromString(text)
-    val cacheCollector = MarkdownCodeFencePluginCacheCollector(file)
-
-    val linkMap = LinkMap.buildLinkMap(parsedTree, text)
+  internal fun createHtmlGeneratingProviders(linkMap: LinkMap,
+                                             baseUri: URI?,
+                                             cacheCollector: MarkdownCodeFencePluginCacheCollector,
+                                             project: Project?): Map<IElementType, GeneratingProvider> {
     val map = MarkdownParserManager.FLAVOUR.createHtmlGeneratingProviders(linkMap, baseUri).toMutableMap()
     map.putAll(MarkdownParserManager.CODE_FENCE_PLUGIN_FLAVOUR.createHtmlGeneratingProviders(cacheCollector))
     if (project != null) {
       map[MarkdownElementTypes.IMAGE] = IntelliJImageGeneratingProvider(linkMap, baseUri)
     }
+    return map
+  }
 
-    val html = HtmlGenerator(text, parsedTree, map, true).generateHtml()
-
-    MarkdownCodeFencePluginCache.getInstance().registerCacheProvider(cacheCollector)
+  /**
+   * Appends [html] to [to] with all source position attributes moved by [shift]
+   */
+  internal fun appendShiftedSrcPositions(to: StringBuilder, html: CharSequence, shift: Int) {
+    if (shift == 0) {
+      to.append(html)
+      return
+    }
 
-    return html
+    var lastEnd = 0
+    for (match in SRC_POS_REGEX.findAll(html)) {
+      to.append(html, lastEnd, match.range.first)
+      to.append(HtmlGenerator.SRC_ATTRIBUTE_NAME).append("=\"")
+        .append(match.groupValues[1].toInt() + shift).append("..").append(match.groupValues[2].toInt() + shift).append('"')
+      lastEnd = match.range.last + 1
+    }
+    to.append(html, lastEnd, html.length)
   }
 }
@@ -23,75 +23,215 @@
  */
 package org.jetbrains.projector.plugins.markdown.ui.preview.projector
 
-import java.io.ByteArrayInputStream
-import java.io.StringWriter
+import com.intellij.openapi.util.text.StringUtil
 import java.net.URI
 import java.nio.file.Files
 import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.attribute.BasicFileAttributes
+import java.security.MessageDigest
 import java.util.*
-import javax.xml.parsers.DocumentBuilderFactory
-import javax.xml.transform.OutputKeys
-import javax.xml.transform.TransformerFactory
-import javax.xml.transform.dom.DOMSource
-import javax.xml.transform.stream.StreamResult
 
 object LocalImagesInliner {
 
-  private val docFactory = DocumentBuilderFactory.newInstance()
-  private val docBuilder = docFactory.newDocumentBuilder()
+  const val IMAGE_REFERENCE_PREFIX = "projector-image:"
 
-  private val transformerFactory = TransformerFactory.newInstance()
-  private val transformer = transformerFactory.newTransformer().apply {
-    setOutputProperty(OutputKeys.INDENT, "no")  // this is mandatory because extra indents spoil blocks of code
-    setOutputProperty(OutputKeys.METHOD, "xml")  // previous line won't work without this one
-    setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes")  // previous line will add header so we have o disable it explicitly
-  }
+  /**
+   * Maximum total size of cached images in bytes, can be set via the `projector.markdown.images.cache.bytes` system property
+   */
+  var cacheBudgetBytes: Long = java.lang.Long.getLong("projector.markdown.images.cache.bytes", 64L * 1024 * 1024)
+    set(value) {
+      synchronized(cache) {
+        field = value
+        trimCache()
+      }
+    }
 
-  fun String.inlineLocalImages(): String {
-    val input = ByteArrayInputStream(this.toByteArray())
+  // inlined or referenced image, in access order
+  private val cache = LinkedHashMap<ImageKey, CachedImage>(16, 0.75f, true)
+  private var cachedBytes = 0L
+
+  /**
+   * Replaces `file:` sources of `<img>` tags with data URIs, leaving the rest of the HTML untouched
+   */
+  fun String.inlineLocalImages(): String = replaceLocalImageSources(this) { getImage(it, referenced = false).value }
+
+  /**
+   * Replaces `file:` sources of `<img>` tags with `projector-image:<sha-256 of content>` references
+   *
+   * @return the HTML and contents of the referenced images by their hashes
+   */
+  fun String.referenceLocalImages(): Pair<String, Map<String, ByteArray>> {
+    val images = mutableMapOf<String, ByteArray>()
+
+    val html = replaceLocalImageSources(this) { src ->
+      val image = getImage(src, referenced = true)
+      images[image.value] = image.bytes!!
+      "$IMAGE_REFERENCE_PREFIX${image.value}"
+    }
 
-    val doc = docBuilder.parse(input)
-    val images = doc.getElementsByTagName("img")
+    return html to images
+  }
 
-    for (imageId in 0 until images.length) {
-      val image = images.item(imageId)
+  private inline fun replaceLocalImageSources(html: String, replacement: (src: String) -> String): String {
+    var result: StringBuilder? = null
+    var copiedUntil = 0
+    var i = 0
 
-      val srcAttribute = image.attributes.getNamedItem("src") ?: continue
+    while (true) {
+      val tagStart = html.indexOf("<img", i, ignoreCase = true)
+      if (tagStart < 0) {
+        break
+      }
 
-      val src = srcAttribute.textContent
+      val tagEnd = html.indexOf('>', tagStart).let { if (it < 0) html.length else it }
+      i = tagEnd
 
-      if (!src.startsWith("file:")) {
+      val src = findSrcAttributeValue(html, tagStart, tagEnd) ?: continue
+      val value = unescapeEntities(html.substring(src.first, src.last + 1))
+      if (!value.startsWith("file:")) {
         continue
       }
 
-      val extension = src.substringAfterLast('.', missingDelimiterValue = "")
-      val path = Path.of(URI(src))
+      val builder = result ?: StringBuilder(html.length).also { result = it }
+      builder.append(html, copiedUntil, src.first)
+      try {
+        builder.append(replacement(value))
+      }
+      catch (t: Throwable) {
+        builder.append(StringUtil.escapeXmlEntities("Can't inline image because of $t"))  // maybe file does not exist so we don't need to care
+      }
+      copiedUntil = src.last + 1
+    }
+
+    return result?.append(html, copiedUntil, html.length)?.toString() ?: html
+  }
+
+  private fun getImage(src: String, referenced: Boolean): CachedImage {
+    val extension = src.substringAfterLast('.', missingDelimiterValue = "")
+    val path = Paths.get(URI(src))
+    val attributes = Files.readAttributes(path, BasicFileAttributes::class.java)
+    val modified = attributes.lastModifiedTime().toMillis()
+    val size = attributes.size()
+    val key = ImageKey(path.toString(), referenced)
+
+    return getCachedImage(key, modified, size) ?: readImage(key, path, extension, modified, size)
+  }
+
+  private fun getCachedImage(key: ImageKey, modified: Long, size: Long): CachedImage? {
+    synchronized(cache) {
+      val cached = cache[key] ?: return null
+      return cached.takeIf { it.modified == modified && it.size == size }
+    }
+  }
+
+  private fun readImage(key: ImageKey, path: Path, extension: String, modified: Long, size: Long): CachedImage {
+    val bytes = Files.readAllBytes(path)
+
+    val image = if (key.referenced) {
+      CachedImage(modified, size, StringUtil.toHexString(MessageDigest.getInstance("SHA-256").digest(bytes)), bytes)
+    }
+    else {
+      val dataUri = when (extension.toLowerCase()) {
+        "svg" -> "data:image/svg+xml;charset=utf-8,${percentEncodeSvg(String(bytes, Charsets.UTF_8))}"
+
+        else -> "data:image/$extension;base64,${Base64.getEncoder().encodeToString(bytes)}"
+      }
 
-      val inlinedImage = inlineImage(path, extension)
+      CachedImage(modified, size, dataUri, null)
+    }
 
-      srcAttribute.textContent = inlinedImage
+    synchronized(cache) {
+      cache.put(key, image)?.let { cachedBytes -= it.weight }
+      cachedBytes += image.weight
+      trimCache()
     }
 
-    val source = DOMSource(doc)
-    val stringWriter = StringWriter(this.length)
-    transformer.transform(source, StreamResult(stringWriter))
+    return image
+  }
+
+  private fun trimCache() {
+    val iterator = cache.values.iterator()
+    while (cachedBytes > cacheBudgetBytes && iterator.hasNext()) {
+      cachedBytes -= iterator.next().weight
+      iterator.remove()
+    }
+  }
 
-    return stringWriter.toString()
+  /**
+   * Encodes only characters that are unsafe in a URI or an HTML attribute, so SVG markup stays mostly as is and is smaller than base64
+   */
+  private fun percentEncodeSvg(svg: String): String {
+    val result = StringBuilder(svg.length + svg.length / 8)
+    for (c in svg) {
+      when {
+        c < ' ' -> if (c == '\n' || c == '\r' || c == '\t') result.append(' ') else result.append("%%%02X".format(c.toInt()))
+        c == '%' || c == '#' || c == '"' || c == '\'' || c == '<' || c == '>' || c == '&' -> result.append("%%%02X".format(c.toInt()))
+        else -> result.append(c)
+      }
+    }
+    return result.toString()
   }
 
-  private fun inlineImage(localPath: Path, extension: String): String {
-    return try {
-      val bytes = Files.readAllBytes(localPath)
-      val base64Content = Base64.getEncoder().encodeToString(bytes)
+  /**
+   * @return range of the `src` attribute value inside the tag
+   */
+  private fun findSrcAttributeValue(html: String, tagStart: Int, tagEnd: Int): IntRange? {
+    var i = tagStart + "<img".length
+    while (i < tagEnd) {
+      val c = html[i]
 
-      when (extension.toLowerCase()) {
-        "svg" -> "data:image/svg+xml;base64,$base64Content"
+      if (c == '"' || c == '\'') {
+        i = html.indexOf(c, i + 1).let { if (it < 0) tagEnd else it + 1 }
+        continue
+      }
 
-        else -> "data:image/$extension;base64,$base64Content"
+      if (html.startsWith("src", i, ignoreCase = true) && html[i - 1].isWhitespace()) {
+        var valueStart = i + "src".length
+        while (valueStart < tagEnd && html[valueStart].isWhitespace()) valueStart++
+        if (valueStart < tagEnd && html[valueStart] == '=') {
+          valueStart++
+          while (valueStart < tagEnd && html[valueStart].isWhitespace()) valueStart++
+
+          val quote = html[valueStart]
+          return if (quote == '"' || quote == '\'') {
+            val valueEnd = html.indexOf(quote, valueStart + 1).takeIf { it in 0 until tagEnd } ?: return null
+            valueStart + 1 until valueEnd
+          }
+          else {
+            var valueEnd = valueStart
+            while (valueEnd < tagEnd && !html[valueEnd].isWhitespace() && html[valueEnd] != '/') valueEnd++
+            valueStart until valueEnd
+          }
+        }
       }
+
+      i++
     }
-    catch (t: Throwable) {
-      "Can't inline image because of $t"  // maybe file does not exist so we don't need to care
+
+    return null
+  }
+
+  private fun unescapeEntities(value: String): String {
+    if (value.indexOf('&') < 0) {
+      return value
     }
+
+    return StringUtil.unescapeXmlEntities(NUMERIC_ENTITY_REGEX.replace(value) {
+      val code = it.groupValues[1]
+      val codePoint = if (code.startsWith("x", ignoreCase = true)) code.substring(1).toInt(16) else code.toInt()
+      if (Character.isValidCodePoint(codePoint)) String(Character.toChars(codePoint)) else it.value
+    })
+  }
+
+  private val NUMERIC_ENTITY_REGEX = Regex("&#([xX][0-9a-fA-F]{1,6}|[0-9]{1,7});")
+
+  private data class ImageKey(val path: String, val referenced: Boolean)
+
+  /**
+   * @param value data URI or, for referenced images, the content hash
+   */
+  private class CachedImage(val modified: Long, val size: Long, val value: String, val bytes: ByteArray?) {
+    val weight: Long get() = value.length * 2L + (bytes?.size ?: 0)
   }
 }
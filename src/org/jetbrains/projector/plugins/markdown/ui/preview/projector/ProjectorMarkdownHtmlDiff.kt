@@ -0,0 +1,273 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview.projector
+
+import org.intellij.markdown.html.HtmlGenerator
+import org.jetbrains.projector.plugins.markdown.ui.preview.MarkdownUtil
+
+/**
+ * Splits preview HTML into top-level blocks of `<body>` and computes block-level patches between two versions.
+ *
+ * A patch is a JSON object `{"version":N,"base":B,"body":"s..e","ops":[...]}` where ops refer to blocks
+ * by their `md-src-pos` ranges as they are when the op is applied, so ops must be applied in order:
+ * - `{"op":"remove","key":"s..e"}` removes the block,
+ * - `{"op":"replace","key":"s..e","html":"..."}` replaces the block with new HTML,
+ * - `{"op":"insert","after":"s..e","html":"..."}` inserts new HTML after the block (`"after":null` means the body start),
+ * - `{"op":"shift","from":"s..e","to":"s..e","delta":D}` adds `D` to all `md-src-pos` values in the blocks
+ *   from `from` to `to` inclusive, including the nested elements.
+ *
+ * A block is a top-level element together with the text following it up to the next top-level element,
+ * the text before the first element belongs to the first block.
+ *
+ * Ops are emitted as removes, shifts, replaces and inserts: removed blocks free their ranges before the following blocks are shifted,
+ * and new blocks get their ranges only after that. A patch where some op would still address an ambiguous range isn't emitted.
+ */
+internal object ProjectorMarkdownHtmlDiff {
+
+  private val VOID_ELEMENTS = setOf("area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta", "source", "wbr")
+
+  class Block(val key: String?, val start: Int, val html: String) {
+    /**
+     * Block HTML with source positions relative to the block start, used to detect blocks that are only moved
+     */
+    val normalizedHtml: String by lazy {
+      if (start <= 0) html else buildString { MarkdownUtil.appendShiftedSrcPositions(this, html, -start) }
+    }
+  }
+
+  class Blocks(val bodySrcPos: String?, val blocks: List<Block>)
+
+  fun split(html: String): Blocks? {
+    val bodyStart = html.indexOf("<body")
+    if (bodyStart < 0) {
+      return null
+    }
+    val bodyTagEnd = findTagEnd(html, bodyStart)
+    val bodyEnd = html.lastIndexOf("</body>")
+    if (bodyTagEnd < 0 || bodyEnd < bodyTagEnd) {
+      return null
+    }
+
+    val blocks = mutableListOf<Block>()
+    var blockStart = bodyTagEnd + 1
+    var blockSrcPos: String? = null
+    var depth = 0
+    var i = blockStart
+
+    fun finishBlock(end: Int) {
+      if (end > blockStart) {
+        blocks.add(Block(blockSrcPos, blockSrcPos?.substringBefore("..")?.toIntOrNull() ?: -1, html.substring(blockStart, end)))
+      }
+      blockStart = end
+    }
+
+    while (i < bodyEnd) {
+      if (html[i] != '<') {
+        i++
+        continue
+      }
+
+      if (html.startsWith("<!--", i)) {
+        i = html.indexOf("-->", i).let { if (it < 0) bodyEnd else it + 3 }
+        continue
+      }
+
+      val tagEnd = findTagEnd(html, i).let { if (it < 0) bodyEnd - 1 else it }
+
+      if (html.startsWith("</", i)) {
+        depth--
+      }
+      else {
+        val selfClosing = html[tagEnd - 1] == '/' || tagName(html, i) in VOID_ELEMENTS
+
+        // a new top-level element starts a new block unless it has no source position to be addressed by
+        if (depth == 0) {
+          val srcPos = srcPos(html, i, tagEnd)
+          if (srcPos != null) {
+            if (blockSrcPos != null) {
+              finishBlock(i)
+            }
+            blockSrcPos = srcPos
+          }
+        }
+
+        if (!selfClosing) {
+          depth++
+        }
+      }
+
+      i = tagEnd + 1
+    }
+    finishBlock(bodyEnd)
+
+    return Blocks(srcPos(html, bodyStart, bodyTagEnd), blocks)
+  }
+
+  /**
+   * @return patch JSON or `null` if the versions can't be diffed and a snapshot should be sent instead
+   */
+  fun diff(old: Blocks, new: Blocks, baseVersion: Int, version: Int): String? {
+    val oldBlocks = old.blocks
+    val newBlocks = new.blocks
+
+    if (oldBlocks.any { it.key == null } || newBlocks.any { it.key == null }) {
+      return null
+    }
+
+    var prefix = 0
+    while (prefix < oldBlocks.size && prefix < newBlocks.size && oldBlocks[prefix].html == newBlocks[prefix].html) {
+      prefix++
+    }
+
+    var suffix = 0
+    while (suffix < oldBlocks.size - prefix && suffix < newBlocks.size - prefix &&
+           oldBlocks[oldBlocks.size - 1 - suffix].normalizedHtml == newBlocks[newBlocks.size - 1 - suffix].normalizedHtml) {
+      suffix++
+    }
+
+    val oldMiddle = oldBlocks.subList(prefix, oldBlocks.size - suffix)
+    val newMiddle = newBlocks.subList(prefix, newBlocks.size - suffix)
+
+    val keys = oldBlocks.mapTo(mutableListOf()) { it.key!! }
+    val ops = mutableListOf<String>()
+    val replaced = oldMiddle.size == newMiddle.size
+
+    if (!replaced) {
+      for (block in oldMiddle) {
+        val index = findUnique(keys, block.key) ?: return null
+        keys.removeAt(index)
+        ops.add("""{"op":"remove","key":${jsonString(block.key)}}""")
+      }
+    }
+
+    val suffixStart = keys.size - suffix
+    fun suffixDelta(i: Int) = newBlocks[newBlocks.size - suffix + i].start - oldBlocks[oldBlocks.size - suffix + i].start
+
+    var runStart = 0
+    while (runStart < suffix) {
+      val delta = suffixDelta(runStart)
+
+      var runEnd = runStart + 1
+      while (runEnd < suffix && suffixDelta(runEnd) == delta) {
+        runEnd++
+      }
+
+      if (delta != 0) {
+        val from = keys[suffixStart + runStart]
+        val to = keys[suffixStart + runEnd - 1]
+        if (findUnique(keys, from) == null || findUnique(keys, to) == null) {
+          return null
+        }
+        for (i in runStart until runEnd) {
+          keys[suffixStart + i] = newBlocks[newBlocks.size - suffix + i].key!!
+        }
+        ops.add("""{"op":"shift","from":${jsonString(from)},"to":${jsonString(to)},"delta":$delta}""")
+      }
+      runStart = runEnd
+    }
+
+    if (replaced) {
+      oldMiddle.zip(newMiddle).forEachIndexed { i, (oldBlock, newBlock) ->
+        if (findUnique(keys, oldBlock.key) == null) {
+          return null
+        }
+        keys[prefix + i] = newBlock.key!!
+        ops.add("""{"op":"replace","key":${jsonString(oldBlock.key)},"html":${jsonString(newBlock.html)}}""")
+      }
+    }
+    else if (newMiddle.isNotEmpty()) {
+      val after = oldBlocks.getOrNull(prefix - 1)?.key
+      if (after != null && findUnique(keys, after) == null) {
+        return null
+      }
+      keys.addAll(prefix, newMiddle.map { it.key!! })
+      ops.add("""{"op":"insert","after":${jsonString(after)},"html":${jsonString(newMiddle.joinToString(separator = "") { it.html })}}""")
+    }
+
+    if (keys.toSet().size != keys.size) {
+      return null
+    }
+
+    return """{"version":$version,"base":$baseVersion,"body":${jsonString(new.bodySrcPos)},"ops":[${ops.joinToString(separator = ",")}]}"""
+  }
+
+  /**
+   * @return the index of the key if no other block has it
+   */
+  private fun findUnique(keys: List<String>, key: String?): Int? {
+    val index = keys.indexOf(key)
+    return if (index >= 0 && keys.lastIndexOf(key) == index) index else null
+  }
+
+  fun snapshot(html: String, version: Int): String = """{"version":$version,"snapshot":${jsonString(html)}}"""
+
+  private fun findTagEnd(html: String, tagStart: Int): Int {
+    var quote: Char? = null
+    for (i in tagStart + 1 until html.length) {
+      val c = html[i]
+      when {
+        quote != null -> if (c == quote) quote = null
+        c == '"' || c == '\'' -> quote = c
+        c == '>' -> return i
+      }
+    }
+    return -1
+  }
+
+  private fun tagName(html: String, tagStart: Int): String {
+    var end = tagStart + 1
+    while (end < html.length && (html[end].isLetterOrDigit() || html[end] == '-')) {
+      end++
+    }
+    return html.substring(tagStart + 1, end).toLowerCase()
+  }
+
+  private fun srcPos(html: String, tagStart: Int, tagEnd: Int): String? {
+    val attribute = "${HtmlGenerator.SRC_ATTRIBUTE_NAME}=\""
+    val attributeStart = html.indexOf(attribute, tagStart).takeIf { it in tagStart until tagEnd } ?: return null
+    val valueStart = attributeStart + attribute.length
+    val valueEnd = html.indexOf('"', valueStart).takeIf { it in valueStart until tagEnd } ?: return null
+    return html.substring(valueStart, valueEnd)
+  }
+
+  private fun jsonString(value: String?): String {
+    value ?: return "null"
+
+    return buildString(value.length + 2) {
+      append('"')
+      for (c in value) {
+        when {
+          c == '"' -> append("\\\"")
+          c == '\\' -> append("\\\\")
+          c == '\n' -> append("\\n")
+          c == '\r' -> append("\\r")
+          c == '\t' -> append("\\t")
+          c < ' ' || c == '\u2028' || c == '\u2029' -> append(String.format("\\u%04x", c.toInt()))
+          else -> append(c)
+        }
+      }
+      append('"')
+    }
+  }
+}
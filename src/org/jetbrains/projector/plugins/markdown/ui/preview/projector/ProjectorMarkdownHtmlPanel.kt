@@ -26,6 +26,7 @@ package org.jetbrains.projector.plugins.markdown.ui.preview.projector
 import com.intellij.openapi.diagnostic.Logger
 import org.jetbrains.projector.plugins.markdown.ui.preview.MarkdownHtmlPanel
 import org.jetbrains.projector.plugins.markdown.ui.preview.projector.LocalImagesInliner.inlineLocalImages
+import org.jetbrains.projector.plugins.markdown.ui.preview.projector.LocalImagesInliner.referenceLocalImages
 import java.awt.Component
 import java.util.concurrent.atomic.AtomicInteger
 import javax.swing.JComponent
@@ -50,7 +51,11 @@ class ProjectorMarkdownHtmlPanel : MarkdownHtmlPanel {
   var y = 0
     private set
 
-  var lastChangedHtml = ""
+  /**
+   * The HTML for the client with its version and images, replaced at once so that other threads never see a mix of two versions
+   */
+  @Volatile
+  var lastChangedHtml = ChangedHtml("", 0, emptyMap())
     private set
 
   var rootComponent: Component? = null
@@ -70,31 +75,11 @@ class ProjectorMarkdownHtmlPanel : MarkdownHtmlPanel {
 
   private var disposed = false
 
-  // todo: to determine where our component is located, a thread is used. it's better to rework the logic
-  private var helperThreadOnceLaunched = false
-  private val helperThreadRunnableGetter: Runnable get() = helperThreadRunnable
-  private val helperThreadRunnable = Runnable {
-    Thread.sleep(1000)
-
-    if (disposed) {
-      return@Runnable
-    }
-
-    SwingUtilities.invokeLater {
-      checkComponentMoved()
-      checkComponentResized()
-      checkComponentShown()
-      checkRootChanged()
-
-      Thread(helperThreadRunnableGetter).start()
-    }
+  init {
+    ProjectorMarkdownHtmlPanelGeometryTracker.register(this)
   }
 
   override fun render() {
-    if (!helperThreadOnceLaunched) {
-      Thread(helperThreadRunnable).start()
-    }
-
     val componentText = buildString {
       if (disposed) {
         appendln("DISPOSED")
@@ -128,12 +113,21 @@ class ProjectorMarkdownHtmlPanel : MarkdownHtmlPanel {
   override fun setHtml(html: String) {
     try {
       var changedHtml = html
+      var images = emptyMap<String, ByteArray>()
 
       if (html.isNotEmpty()) {
-        changedHtml = changedHtml.inlineLocalImages()
+        if (ProjectorMarkdownHtmlPanelProvider.imageCallback != null) {
+          html.referenceLocalImages().let {
+            changedHtml = it.first
+            images = it.second
+          }
+        }
+        else {
+          changedHtml = changedHtml.inlineLocalImages()
+        }
       }
 
-      lastChangedHtml = changedHtml
+      lastChangedHtml = ChangedHtml(changedHtml, lastChangedHtml.version + 1, images)
       lastHtml = html
 
       ProjectorMarkdownHtmlPanelUpdater.setHtml(id)
@@ -156,9 +150,21 @@ class ProjectorMarkdownHtmlPanel : MarkdownHtmlPanel {
   override fun dispose() {
     disposed = true
 
+    ProjectorMarkdownHtmlPanelGeometryTracker.unregister(this)
+
     ProjectorMarkdownHtmlPanelUpdater.dispose(id)
   }
 
+  /**
+   * Is called by [ProjectorMarkdownHtmlPanelGeometryTracker] on EDT
+   */
+  internal fun updateGeometry() {
+    checkComponentMoved()
+    checkComponentResized()
+    checkComponentShown()
+    checkRootChanged()
+  }
+
   private fun checkComponentMoved() {
     // todo: don't use location on screen but location in window and set location on client relative to window
 
@@ -211,6 +217,11 @@ class ProjectorMarkdownHtmlPanel : MarkdownHtmlPanel {
     }
   }
 
+  /**
+   * @param images contents of the images referenced from [html] by their hashes, empty if images are inlined
+   */
+  class ChangedHtml(val html: String, val version: Int, val images: Map<String, ByteArray>)
+
   companion object {
 
     private val NEXT_ID = AtomicInteger()
@@ -0,0 +1,171 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview.projector
+
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.intellij.util.containers.ContainerUtil
+import java.awt.Window
+import java.awt.event.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import javax.swing.SwingUtilities
+import javax.swing.Timer
+
+/**
+ * Tracks location, size, visibility and root of all live panels.
+ *
+ * Updates are driven by Swing component and hierarchy events and are coalesced into one batched EDT callback per frame.
+ * Moves of the window reach the panel as ancestor events, unless the panel has no window root or its window is embedded
+ * into a native or JavaFX one, whose moves produce no events. Only such panels are rechecked by a single shared
+ * low-frequency task, which runs only while there are such panels.
+ */
+internal object ProjectorMarkdownHtmlPanelGeometryTracker {
+
+  private const val FRAME_MS = 16
+  private const val POLLING_PERIOD_MS = 1000L
+
+  // windows hosted by a foreign window, they don't get events when the host is moved
+  private val EMBEDDED_WINDOW_CLASSES = setOf("sun.awt.EmbeddedFrame", "sun.awt.LightweightFrame")
+
+  private val panelToListener = ConcurrentHashMap<ProjectorMarkdownHtmlPanel, PanelListener>()
+
+  private val dirtyPanels = ContainerUtil.newConcurrentSet<ProjectorMarkdownHtmlPanel>()
+
+  private val polledPanels = ContainerUtil.newConcurrentSet<ProjectorMarkdownHtmlPanel>()
+
+  private val flushTimer by lazy { Timer(FRAME_MS) { flush() }.apply { isRepeats = false } }
+
+  private var pollingFuture: ScheduledFuture<*>? = null
+
+  fun register(panel: ProjectorMarkdownHtmlPanel) {
+    val listener = PanelListener(panel)
+    panelToListener[panel] = listener
+
+    panel.component.let {
+      it.addComponentListener(listener)
+      it.addHierarchyListener(listener)
+      it.addHierarchyBoundsListener(listener)
+    }
+
+    markDirty(panel)
+  }
+
+  fun unregister(panel: ProjectorMarkdownHtmlPanel) {
+    val listener = panelToListener.remove(panel) ?: return
+    dirtyPanels.remove(panel)
+    polledPanels.remove(panel)
+
+    panel.component.let {
+      it.removeComponentListener(listener)
+      it.removeHierarchyListener(listener)
+      it.removeHierarchyBoundsListener(listener)
+    }
+
+    updatePolling()
+  }
+
+  private fun markDirty(panel: ProjectorMarkdownHtmlPanel) {
+    dirtyPanels.add(panel)
+
+    if (SwingUtilities.isEventDispatchThread()) {
+      scheduleFlush()
+    }
+    else {
+      SwingUtilities.invokeLater(::scheduleFlush)
+    }
+  }
+
+  private fun scheduleFlush() {
+    if (!flushTimer.isRunning) {
+      flushTimer.start()
+    }
+  }
+
+  private fun flush() {
+    val panels = dirtyPanels.toList()
+    dirtyPanels.removeAll(panels)
+
+    for (panel in panels) {
+      if (panel !in panelToListener) continue
+
+      panel.updateGeometry()
+      // hierarchy changes mark the panel dirty, so its root is checked again whenever it may change
+      if (needsPolling(panel)) polledPanels.add(panel) else polledPanels.remove(panel)
+    }
+    updatePolling()
+  }
+
+  private fun needsPolling(panel: ProjectorMarkdownHtmlPanel): Boolean {
+    val component = panel.component
+    if (!component.isShowing) {
+      // it's shown again with a hierarchy event
+      return false
+    }
+
+    val root = SwingUtilities.getRoot(component)
+    return root !is Window || isEmbedded(root)
+  }
+
+  private fun isEmbedded(window: Window): Boolean =
+    generateSequence<Class<*>>(window.javaClass) { it.superclass }.any { it.name in EMBEDDED_WINDOW_CLASSES }
+
+  @Synchronized
+  private fun updatePolling() {
+    val future = pollingFuture
+
+    if (polledPanels.isEmpty()) {
+      future?.cancel(false)
+      pollingFuture = null
+    }
+    else if (future == null) {
+      pollingFuture = AppExecutorUtil.getAppScheduledExecutorService().scheduleWithFixedDelay(
+        Runnable { SwingUtilities.invokeLater { polledPanels.forEach(::markDirty) } },
+        POLLING_PERIOD_MS, POLLING_PERIOD_MS, TimeUnit.MILLISECONDS
+      )
+    }
+  }
+
+  private class PanelListener(private val panel: ProjectorMarkdownHtmlPanel) : ComponentAdapter(), HierarchyListener,
+                                                                                HierarchyBoundsListener {
+
+    override fun componentMoved(e: ComponentEvent) = markDirty(panel)
+
+    override fun componentResized(e: ComponentEvent) = markDirty(panel)
+
+    override fun componentShown(e: ComponentEvent) = markDirty(panel)
+
+    override fun componentHidden(e: ComponentEvent) = markDirty(panel)
+
+    override fun hierarchyChanged(e: HierarchyEvent) {
+      if (e.changeFlags and (HierarchyEvent.SHOWING_CHANGED or HierarchyEvent.PARENT_CHANGED).toLong() != 0L) {
+        markDirty(panel)
+      }
+    }
+
+    override fun ancestorMoved(e: HierarchyEvent) = markDirty(panel)
+
+    override fun ancestorResized(e: HierarchyEvent) = markDirty(panel)
+  }
+}
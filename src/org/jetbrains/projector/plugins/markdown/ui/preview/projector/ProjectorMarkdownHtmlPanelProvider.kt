@@ -67,6 +67,22 @@ class ProjectorMarkdownHtmlPanelProvider : MarkdownHtmlPanelProvider() {
       @JvmStatic
       set
 
+    /**
+     * If set, HTML is sent through this callback as JSON snapshots and block-level patches instead of [setHtmlCallback].
+     * Each received version must be confirmed with [acknowledgeHtml], see [ProjectorMarkdownHtmlDiff] for the format.
+     */
+    var setHtmlPatchCallback: BiConsumer<Int, String>? = null
+      @JvmStatic
+      set
+
+    /**
+     * If set, local images are referenced from HTML as `projector-image:<hash>` and their contents are sent through this callback,
+     * once per client session for each distinct hash.
+     */
+    var imageCallback: BiConsumer<String, ByteArray>? = null
+      @JvmStatic
+      set
+
     var setCssCallback: BiConsumer<Int, String>? = null
       @JvmStatic
       set
@@ -85,6 +101,12 @@ class ProjectorMarkdownHtmlPanelProvider : MarkdownHtmlPanelProvider() {
       ProjectorMarkdownHtmlPanelUpdater.updateAll()
     }
 
+    @Suppress("unused")  // it's used via reflection
+    @JvmStatic
+    fun acknowledgeHtml(id: Int, version: Int) {
+      ProjectorMarkdownHtmlPanelUpdater.acknowledgeHtml(id, version)
+    }
+
     @Suppress("unused")  // it's used via reflection
     @JvmStatic
     fun openInExternalBrowser(link: String) {
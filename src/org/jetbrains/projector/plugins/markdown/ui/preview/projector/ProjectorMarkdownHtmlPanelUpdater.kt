@@ -23,18 +23,35 @@
  */
 package org.jetbrains.projector.plugins.markdown.ui.preview.projector
 
+import com.intellij.util.concurrency.AppExecutorUtil
 import java.awt.Dimension
 import java.awt.Point
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.concurrent.read
 import kotlin.concurrent.write
 
 object ProjectorMarkdownHtmlPanelUpdater {
 
+  private val ackTimeoutMs = java.lang.Long.getLong("projector.markdown.preview.ack.timeout.ms", 5000L)
+
   private val idToPanelLock = ReentrantReadWriteLock()
 
   private val idToPanel = mutableMapOf<Int, ProjectorMarkdownHtmlPanel>()
 
+  private val idToPatchState = ConcurrentHashMap<Int, PatchState>()
+
+  private val maxSentImages = Integer.getInteger("projector.markdown.preview.images.sent.max", 1024)
+
+  // images the client has got, the least recently used ones are forgotten and sent again if they are shown again
+  private val sentImageHashes: MutableSet<String> = Collections.synchronizedSet(Collections.newSetFromMap(
+    object : LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+      override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Boolean>): Boolean = size > maxSentImages
+    }
+  ))
+
   fun put(panel: ProjectorMarkdownHtmlPanel) {
     idToPanelLock.write {
       idToPanel[panel.id] = panel
@@ -42,6 +59,10 @@ object ProjectorMarkdownHtmlPanelUpdater {
   }
 
   fun updateAll() {
+    // the client has reconnected so it needs full snapshots and all images again
+    idToPatchState.clear()
+    sentImageHashes.clear()
+
     idToPanelLock.read {
       idToPanel.keys.forEach {
         show(it)
@@ -75,6 +96,7 @@ object ProjectorMarkdownHtmlPanelUpdater {
 
   fun dispose(id: Int) {
     idToPanelLock.write { idToPanel.remove(id) }
+    idToPatchState.remove(id)
 
     ProjectorMarkdownHtmlPanelProvider.disposeCallback?.accept(id)
   }
@@ -88,7 +110,103 @@ object ProjectorMarkdownHtmlPanelUpdater {
   fun setHtml(id: Int) {
     val panel = idToPanelLock.read { idToPanel[id] ?: return }
 
-    ProjectorMarkdownHtmlPanelProvider.setHtmlCallback?.accept(id, panel.lastChangedHtml)
+    if (ProjectorMarkdownHtmlPanelProvider.setHtmlPatchCallback != null) {
+      sendHtmlPatch(id, panel)
+      return
+    }
+
+    val changedHtml = panel.lastChangedHtml
+    sendImages(changedHtml.images)
+    ProjectorMarkdownHtmlPanelProvider.setHtmlCallback?.accept(id, changedHtml.html)
+    // there is no ack without patches, so the images are delivered once the callbacks return
+    sentImageHashes.addAll(changedHtml.images.keys)
+  }
+
+  fun acknowledgeHtml(id: Int, version: Int) {
+    val state = idToPatchState[id] ?: return
+
+    val hasNewerHtml = synchronized(state) {
+      val inFlight = state.inFlight
+      if (inFlight == null || inFlight.version != version) {
+        return
+      }
+
+      state.acknowledged = inFlight
+      state.inFlight = null
+      sentImageHashes.addAll(inFlight.imageHashes)
+      state.hasNewerHtml
+    }
+
+    if (hasNewerHtml) {
+      setHtml(id)
+    }
+  }
+
+  private fun sendHtmlPatch(id: Int, panel: ProjectorMarkdownHtmlPanel) {
+    val state = idToPatchState.getOrPut(id) { PatchState() }
+
+    val (message, version, images) = synchronized(state) {
+      // patches are computed against the acknowledged version, so wait for the client before sending the next one
+      if (state.inFlight != null) {
+        state.hasNewerHtml = true
+        return
+      }
+      state.hasNewerHtml = false
+
+      val changedHtml = panel.lastChangedHtml
+      val html = changedHtml.html
+      val version = changedHtml.version
+      val blocks = ProjectorMarkdownHtmlDiff.split(html)
+      val acknowledged = state.acknowledged
+
+      state.inFlight = SentHtml(version, blocks, changedHtml.images.keys)
+
+      val message = if (acknowledged?.blocks != null && blocks != null) {
+        ProjectorMarkdownHtmlDiff.diff(acknowledged.blocks, blocks, acknowledged.version, version)
+        ?: ProjectorMarkdownHtmlDiff.snapshot(html, version)
+      }
+      else {
+        ProjectorMarkdownHtmlDiff.snapshot(html, version)
+      }
+
+      Triple(message, version, changedHtml.images)
+    }
+
+    sendImages(images)
+    ProjectorMarkdownHtmlPanelProvider.setHtmlPatchCallback?.accept(id, message)
+    AppExecutorUtil.getAppScheduledExecutorService().schedule(Runnable { onAckTimeout(id, version) }, ackTimeoutMs, TimeUnit.MILLISECONDS)
+  }
+
+  /**
+   * A patch or its ack is lost if the client doesn't acknowledge it in time, so the client gets a snapshot instead
+   */
+  private fun onAckTimeout(id: Int, version: Int) {
+    val state = idToPatchState[id] ?: return
+
+    synchronized(state) {
+      if (state.inFlight?.version != version) {
+        return
+      }
+
+      state.inFlight = null
+      state.acknowledged = null
+      state.hasNewerHtml = false
+    }
+
+    setHtml(id)
+  }
+
+  /**
+   * Sends the images the client hasn't got yet, they are marked as sent only once the HTML showing them is delivered
+   */
+  private fun sendImages(images: Map<String, ByteArray>) {
+    val callback = ProjectorMarkdownHtmlPanelProvider.imageCallback ?: return
+
+    images.forEach { (hash, bytes) ->
+      if (hash !in sentImageHashes) {
+        callback.accept(hash, bytes)
+      }
+    }
   }
 
   fun setCss(id: Int) {
@@ -102,4 +220,12 @@ object ProjectorMarkdownHtmlPanelUpdater {
 
     ProjectorMarkdownHtmlPanelProvider.scrollCallback?.accept(id, panel.lastScrollOffset)
   }
+
+  private class SentHtml(val version: Int, val blocks: ProjectorMarkdownHtmlDiff.Blocks?, val imageHashes: Collection<String>)
+
+  private class PatchState {
+    var acknowledged: SentHtml? = null
+    var inFlight: SentHtml? = null
+    var hasNewerHtml = false
+  }
 }
@@ -51,6 +51,7 @@ import com.intellij.util.PsiNavigateUtil
 import com.intellij.util.containers.ContainerUtil
 import com.intellij.util.io.isLocalHost
 import org.jetbrains.projector.plugins.markdown.MarkdownBundle
+import org.jetbrains.projector.plugins.markdown.lang.psi.impl.MarkdownHeaderImpl
 import org.jetbrains.projector.plugins.markdown.lang.references.MarkdownAnchorReference
 import org.jetbrains.projector.plugins.markdown.ui.preview.MarkdownSplitEditor
 import java.net.URI
@@ -182,7 +183,9 @@ object SafeOpener {
         fun getTextFor(value: PsiElement): String {
           val document = FileDocumentManager.getInstance().getDocument(value.containingFile.virtualFile)
           val name = value.containingFile.virtualFile.name
-          return value.text + " (" + name + ":" + (Objects.requireNonNull(document)!!.getLineNumber(value.textOffset) + 1) + ")"
+          // the header name and offset come from the stub if the target file isn't loaded
+          val text = (value as? MarkdownHeaderImpl)?.name ?: value.text
+          return text + " (" + name + ":" + (Objects.requireNonNull(document)!!.getLineNumber(value.textOffset) + 1) + ")"
         }
 
         fun onChosen(selectedValue: PsiElement, finalChoice: Boolean): PopupStep<*>? {
@@ -0,0 +1,56 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.util;
+
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Files larger than the {@code projector.markdown.largeFile.threshold} system property (in bytes) are opened with degraded features:
+ * block-level highlighting and folding only, no daemon highlighting, no code fence injections and no preview.
+ * Full features are enabled per file from the editor banner.
+ */
+public final class MarkdownLargeFileMode {
+  private static final long THRESHOLD = Long.getLong("projector.markdown.largeFile.threshold", 4 * 1024 * 1024);
+
+  private static final Key<Boolean> FULL_FEATURES_ENABLED = Key.create("Markdown.LargeFile.FullFeaturesEnabled");
+
+  private MarkdownLargeFileMode() {
+  }
+
+  public static boolean isEnabled(@Nullable VirtualFile file) {
+    return file != null && file.getLength() >= THRESHOLD && file.getUserData(FULL_FEATURES_ENABLED) == null;
+  }
+
+  public static boolean isEnabled(@NotNull PsiFile file) {
+    return isEnabled(file.getOriginalFile().getViewProvider().getVirtualFile());
+  }
+
+  public static void enableFullFeatures(@NotNull VirtualFile file) {
+    file.putUserData(FULL_FEATURES_ENABLED, Boolean.TRUE);
+  }
+}
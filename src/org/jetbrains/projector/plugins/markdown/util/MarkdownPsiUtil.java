@@ -110,7 +110,7 @@ public class MarkdownPsiUtil {
     return headerLevel(typeA) <= headerLevel(typeB);
   }
 
-  private static int headerLevel(@NotNull IElementType curLevelType) {
+  public static int headerLevel(@NotNull IElementType curLevelType) {
     for (int i = 0; i < HEADER_ORDER.size(); i++) {
       if (HEADER_ORDER.get(i).contains(curLevelType)) {
         return i;
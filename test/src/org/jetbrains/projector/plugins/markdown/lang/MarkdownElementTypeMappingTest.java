@@ -0,0 +1,113 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang;
+
+import com.intellij.psi.tree.IElementType;
+import org.intellij.markdown.MarkdownElementTypes;
+import org.intellij.markdown.MarkdownTokenTypes;
+import org.intellij.markdown.flavours.gfm.GFMElementTypes;
+import org.intellij.markdown.flavours.gfm.GFMTokenTypes;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertSame;
+
+/**
+ * Maps token types on several threads at once, like lexers and highlighters of several editors do,
+ * and checks that every thread gets the same platform type, including the types mapped for the first time.
+ */
+public class MarkdownElementTypeMappingTest {
+  private static final int THREADS = 8;
+  private static final int LOOKUPS_PER_THREAD = 10_000;
+
+  private static final org.intellij.markdown.IElementType[] KNOWN_TYPES = {
+    MarkdownTokenTypes.TEXT, MarkdownTokenTypes.EOL, MarkdownTokenTypes.WHITE_SPACE, MarkdownTokenTypes.EMPH,
+    MarkdownTokenTypes.BACKTICK, MarkdownTokenTypes.LBRACKET, MarkdownTokenTypes.RBRACKET, MarkdownTokenTypes.CODE_FENCE_CONTENT,
+    MarkdownTokenTypes.ATX_HEADER, MarkdownTokenTypes.ATX_CONTENT, MarkdownTokenTypes.LIST_BULLET, MarkdownTokenTypes.HTML_BLOCK_CONTENT,
+    MarkdownElementTypes.PARAGRAPH, MarkdownElementTypes.LIST_ITEM, MarkdownElementTypes.BLOCK_QUOTE, MarkdownElementTypes.CODE_FENCE,
+    MarkdownElementTypes.ATX_1, MarkdownElementTypes.INLINE_LINK, MarkdownElementTypes.EMPH, MarkdownElementTypes.STRONG,
+    GFMTokenTypes.CELL, GFMTokenTypes.TABLE_SEPARATOR, GFMElementTypes.TABLE, GFMElementTypes.STRIKETHROUGH,
+  };
+
+  @Test
+  public void sameTypeOnAllThreads() throws Exception {
+    final List<org.intellij.markdown.IElementType> types = new ArrayList<>(Arrays.asList(KNOWN_TYPES));
+    // not mapped by anything else, so the threads race to create their platform types
+    for (int i = 0; i < 16; i++) {
+      types.add(new org.intellij.markdown.IElementType("MAPPING_TEST_" + i));
+    }
+
+    final IElementType[][] results = new IElementType[THREADS][types.size()];
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Callable<Void>> tasks = new ArrayList<>();
+    for (int thread = 0; thread < THREADS; thread++) {
+      final IElementType[] result = results[thread];
+      final int shift = thread;
+      tasks.add(() -> {
+        start.await();
+        for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+          final int index = (i + shift) % types.size();
+          final IElementType platformType = MarkdownElementType.platformType(types.get(index));
+          if (result[index] == null) {
+            result[index] = platformType;
+          }
+          assertSame(types.get(index).toString(), result[index], platformType);
+        }
+        return null;
+      });
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      final List<Future<Void>> futures = new ArrayList<>();
+      for (Callable<Void> task : tasks) {
+        futures.add(executor.submit(task));
+      }
+      start.countDown();
+      for (Future<Void> future : futures) {
+        future.get(1, TimeUnit.MINUTES);
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    for (int i = 0; i < types.size(); i++) {
+      final IElementType platformType = MarkdownElementType.platformType(types.get(i));
+      for (IElementType[] result : results) {
+        assertSame(types.get(i).toString(), platformType, result[i]);
+      }
+      assertSame(types.get(i), MarkdownElementType.markdownType(platformType));
+    }
+  }
+}
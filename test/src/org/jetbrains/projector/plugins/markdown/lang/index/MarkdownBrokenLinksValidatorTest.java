@@ -0,0 +1,104 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.index;
+
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class MarkdownBrokenLinksValidatorTest extends BasePlatformTestCase {
+  public void testLinksToTheSameTargetAreResolvedOnce() {
+    for (String name : new String[]{"a", "b", "c"}) {
+      myFixture.addFileToProject("docs/" + name + ".md", "[file](target.md) and [header](target.md#Some%20Header)\n");
+    }
+    myFixture.addFileToProject("docs/target.md", "# Some Header\n");
+
+    final MarkdownBrokenLinksValidator.Result result = validate();
+    assertEmpty(result.getBrokenLinks());
+    assertEquals(3, result.getFileCount());
+    assertEquals(6, result.getLinkCount());
+    assertEquals(1, result.getResolvedPathCount());
+    assertEquals(1, result.getCheckedAnchorCount());
+  }
+
+  public void testMissingTargetsAreResolvedOnce() {
+    myFixture.addFileToProject("docs/a.md", "[file](missing.md) and [header](missing.md#header)\n");
+    myFixture.addFileToProject("docs/b.md", "[file](missing.md)\n");
+
+    final MarkdownBrokenLinksValidator.Result result = validate();
+    assertEquals(3, result.getBrokenLinks().size());
+    assertEquals(1, result.getResolvedPathCount());
+    assertEquals("anchors of missing files aren't looked up", 0, result.getCheckedAnchorCount());
+  }
+
+  public void testDirectoriesAndAnchors() {
+    myFixture.addFileToProject("docs/sub/x.md", "# X\n");
+    myFixture.addFileToProject("docs/a.md",
+                               "[dir](sub) [dir anchor](sub#whatever) [local](#local) [no local](#nope)\n" +
+                               "[header](sub/x.md#x) [no header](sub/x.md#y) [root](/docs/sub/x.md#X)\n\n" +
+                               "# Local\n");
+
+    final Set<String> brokenAnchors = new HashSet<>();
+    for (MarkdownLinkUsage usage : validate().getBrokenLinks()) {
+      brokenAnchors.add(usage.getLink().getPath() + "#" + usage.getLink().getAnchor());
+    }
+    assertSameElements(brokenAnchors, "#nope", "sub/x.md#y");
+  }
+
+  public void testThroughput() {
+    final int fileCount = 100;
+    final int linksPerTarget = 10;
+    myFixture.addFileToProject("docs/target.md", "# Some Header\n");
+    for (int i = 0; i < fileCount; i++) {
+      final StringBuilder text = new StringBuilder("# File " + i + "\n\n");
+      for (int j = 0; j < linksPerTarget; j++) {
+        text.append("[target](target.md#some-header) [next](f").append((i + 1) % fileCount).append(".md#file-").append((i + 1) % fileCount)
+          .append(")\n\n");
+      }
+      myFixture.addFileToProject("docs/f" + i + ".md", text.toString());
+    }
+
+    final MarkdownBrokenLinksValidator.Result result = validate();
+    assertEmpty(result.getBrokenLinks());
+    assertEquals(fileCount, result.getFileCount());
+    assertEquals(2 * fileCount * linksPerTarget, result.getLinkCount());
+    assertEquals(1 + fileCount, result.getResolvedPathCount());
+    assertEquals(1 + fileCount, result.getCheckedAnchorCount());
+    // way above what it takes, only catches links being resolved one by one again
+    assertTrue("validation took " + TimeUnit.NANOSECONDS.toMillis(result.getNanos()) + " ms",
+               result.getNanos() < TimeUnit.SECONDS.toNanos(30));
+    assertTrue(result.getLinksPerSecond() > 0);
+  }
+
+  @NotNull
+  private MarkdownBrokenLinksValidator.Result validate() {
+    return new MarkdownBrokenLinksValidator(getProject(), GlobalSearchScope.projectScope(getProject()))
+      .validate(new EmptyProgressIndicator());
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.index;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+import com.intellij.util.indexing.FileBasedIndex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks which links {@link MarkdownLinksIndex} keeps under which target names and how {@link MarkdownLinkGraph} resolves them.
+ */
+public class MarkdownLinksIndexTest extends BasePlatformTestCase {
+  public void testAngleBracketDestination() {
+    final PsiFile file = myFixture.addFileToProject("a.md", "[link](<my file.md#Header>)\n");
+
+    final MarkdownLink link = assertOneLink(file, "my file.md");
+    assertEquals("my file.md", link.getPath());
+    assertEquals("header", link.getAnchor());
+    assertEquals("the destination without the brackets", "my file.md#Header",
+                 file.getText().substring(link.getOffset(), link.getOffset() + link.getLength()));
+  }
+
+  public void testUrlsAreSkipped() {
+    final PsiFile file = myFixture.addFileToProject("a.md", "[web](http://example.com/b.md) [ftp](ftp://example.com/c.md) " +
+                                                            "[mail](mailto:me@example.com) [file](d.md)\n");
+
+    assertEmpty(getLinks(file, "b.md"));
+    assertEmpty(getLinks(file, "c.md"));
+    assertEmpty(getLinks(file, "mailto:me@example.com"));
+    assertEmpty(getLinks(file, "me@example.com"));
+    assertOneLink(file, "d.md");
+  }
+
+  public void testSameFileAnchorIsKeyedByTheFileName() {
+    final PsiFile file = myFixture.addFileToProject("docs/self.md", "# Some Header\n\n[up](#Some%20Header)\n");
+
+    final MarkdownLink link = assertOneLink(file, "self.md");
+    assertEquals("", link.getPath());
+    assertEquals("some-header", link.getAnchor());
+    assertEquals(file.getVirtualFile(), resolve(file, link));
+  }
+
+  public void testPercentEscapedPath() {
+    final PsiFile target = myFixture.addFileToProject("docs/my file.md", "text\n");
+    final PsiFile file = myFixture.addFileToProject("docs/a.md", "[link](my%20file.md)\n");
+
+    final MarkdownLink link = assertOneLink(file, "my file.md");
+    assertEquals("my%20file.md", link.getPath());
+    assertEquals(target.getVirtualFile(), resolve(file, link));
+  }
+
+  public void testRelativePaths() {
+    final PsiFile sibling = myFixture.addFileToProject("docs/x.md", "text\n");
+    final PsiFile parent = myFixture.addFileToProject("y.md", "text\n");
+    final PsiFile dir = myFixture.addFileToProject("docs/sub/z.md", "text\n");
+    final PsiFile file = myFixture.addFileToProject("docs/a.md", "[x](./x.md) [y](../y.md) [sub](sub/) [here](.) [up](..)\n");
+
+    assertEquals(sibling.getVirtualFile(), resolve(file, assertOneLink(file, "x.md")));
+    assertEquals(parent.getVirtualFile(), resolve(file, assertOneLink(file, "y.md")));
+    assertEquals(dir.getVirtualFile().getParent(), resolve(file, assertOneLink(file, "sub")));
+    assertEmpty("links without a target name aren't indexed", getLinks(file, "."));
+    assertEmpty(getLinks(file, ".."));
+  }
+
+  public void testLeadingSlashIsTheContentRoot() {
+    final PsiFile target = myFixture.addFileToProject("docs/x.md", "text\n");
+    final PsiFile file = myFixture.addFileToProject("docs/deep/a.md", "[x](/docs/x.md)\n");
+
+    assertEquals(target.getVirtualFile(), resolve(file, assertOneLink(file, "x.md")));
+  }
+
+  public void testAnchorsMatchHeaderAnchors() {
+    final PsiFile target = myFixture.addFileToProject("docs/x.md", "# Some Header\n\n## Another Header\n");
+    final PsiFile a = myFixture.addFileToProject("docs/a.md", "[header](x.md#Some%20Header) [another](x.md#another-header)\n");
+    final PsiFile b = myFixture.addFileToProject("docs/b.md", "[header](./x.md#some-header) [missing](x.md#missing)\n");
+    myFixture.addFileToProject("other/x.md", "[same name, other file](x.md#some-header)\n");
+
+    for (MarkdownLink link : getLinks(a, "x.md")) {
+      assertTrue(link.getAnchor(), MarkdownLinkGraph.INSTANCE.hasAnchor(getProject(), target.getVirtualFile(), link.getAnchor()));
+    }
+    assertFalse(MarkdownLinkGraph.INSTANCE.hasAnchor(getProject(), target.getVirtualFile(), "missing"));
+
+    final List<VirtualFile> linkingFiles = new ArrayList<>();
+    final GlobalSearchScope scope = GlobalSearchScope.projectScope(getProject());
+    for (MarkdownLinkUsage usage : MarkdownLinkGraph.INSTANCE.getBacklinks(getProject(), target.getVirtualFile(), "some-header", scope)) {
+      linkingFiles.add(usage.getFile());
+    }
+    assertSameElements(linkingFiles, a.getVirtualFile(), b.getVirtualFile());
+
+    assertSize(4, MarkdownLinkGraph.INSTANCE.getBacklinks(getProject(), target.getVirtualFile(), null, scope));
+  }
+
+  @NotNull
+  private MarkdownLink assertOneLink(@NotNull PsiFile file, @NotNull String targetName) {
+    final List<MarkdownLink> links = getLinks(file, targetName);
+    assertSize(1, links);
+    return links.get(0);
+  }
+
+  @NotNull
+  private List<MarkdownLink> getLinks(@NotNull PsiFile file, @NotNull String targetName) {
+    final List<MarkdownLink> result = new ArrayList<>();
+    final GlobalSearchScope scope = GlobalSearchScope.fileScope(file);
+    for (List<MarkdownLink> links : FileBasedIndex.getInstance().getValues(MarkdownLinksIndex.Companion.getNAME(), targetName, scope)) {
+      result.addAll(links);
+    }
+    return result;
+  }
+
+  @Nullable
+  private VirtualFile resolve(@NotNull PsiFile file, @NotNull MarkdownLink link) {
+    return MarkdownLinkGraph.INSTANCE.resolve(getProject(), file.getVirtualFile(), link);
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.parser;
+
+import org.intellij.markdown.MarkdownElementTypes;
+import org.intellij.markdown.MarkdownTokenTypes;
+import org.intellij.markdown.ast.ASTNode;
+import org.intellij.markdown.parser.MarkdownParser;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds random and pathological markdown to {@link MarkdownGuardedParser}, both block and inline, and checks that the trees
+ * stay well formed, don't depend on the run, match the unguarded parser when nothing is cut and take bounded time.
+ */
+public class MarkdownGuardedParserFuzzTest {
+  private static final int ITERATIONS = 500;
+  private static final int MAX_DEPTH = Integer.getInteger("projector.markdown.parse.maxDepth", 128);
+  // way above what the budget allows, so that slow machines don't fail the test
+  private static final long MAX_PARSE_MS = Long.getLong("projector.markdown.test.parse.maxMs", 10_000L);
+
+  private static final String[] INLINE_FRAGMENTS = {
+    "text ", "*", "**", "_", "__", "~~", "`", "``", "[", "]", "(", ")", "![", "<", ">", "\\", "http://example.com ", "<a href=\"x\">",
+  };
+
+  private static final String[] FRAGMENTS = {
+    "# Header\n", "Setext\n===\n", "text *emphasis* **strong** `code`\n", "\n", "\n\n", "> ", ">> ", "- ", "* ", "1. ", "  ", "    ",
+    "```\n", "```kotlin\n", "~~~\n", "<div>\n", "</div>\n", "<!-- comment\n", "-->\n", "<pre>\n", "</pre>\n", "| a | b |\n", "|---|---|\n",
+    "[link](http://example.com)", "[ref]: http://example.com\n", "<kbd>x</kbd>", "***\n", "- [ ] task\n", "\\", "*", "_", "[", "]", "(", ")",
+  };
+
+  @Test
+  public void randomDocuments() {
+    final Random random = new Random(42);
+    for (int i = 0; i < ITERATIONS; i++) {
+      final String text = randomDocument(random, 1 + random.nextInt(200));
+      final ASTNode tree = checkWellFormed(text);
+
+      if (!MarkdownGuardedParser.isDegraded(tree) && MarkdownParserTestUtil.depth(tree) <= 64) {
+        final ASTNode expected =
+          new MarkdownParser(MarkdownParserManager.FLAVOUR).parse(MarkdownElementTypes.MARKDOWN_FILE, text, false);
+        assertEquals(text, MarkdownParserTestUtil.dump(expected), MarkdownParserTestUtil.dump(tree));
+      }
+    }
+  }
+
+  @Test
+  public void deeplyNestedQuotes() {
+    final ASTNode tree = checkWellFormed(repeat("> ", 1_000) + "text\n");
+    assertEquals("only the part past the depth limit is kept as plain text",
+                 MarkdownElementTypes.BLOCK_QUOTE, tree.getChildren().get(0).getType());
+  }
+
+  @Test
+  public void deeplyNestedLists() {
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      text.append(repeat("  ", i)).append("- item\n");
+    }
+    final ASTNode tree = checkWellFormed(text.toString());
+    assertEquals(MarkdownElementTypes.UNORDERED_LIST, tree.getChildren().get(0).getType());
+  }
+
+  @Test
+  public void unclosedDelimiters() {
+    checkWellFormed(repeat("[", 20_000) + repeat("*_", 20_000) + repeat("<a ", 5_000));
+  }
+
+  @Test
+  public void unclosedFencesAndHtmlBlocks() {
+    checkWellFormed(repeat("```\n> - <div>\n", 5_000));
+  }
+
+  @Test
+  public void randomInlines() {
+    final Random random = new Random(42);
+    for (int i = 0; i < ITERATIONS; i++) {
+      final StringBuilder text = new StringBuilder();
+      final int fragmentCount = 1 + random.nextInt(300);
+      for (int j = 0; j < fragmentCount; j++) {
+        text.append(INLINE_FRAGMENTS[random.nextInt(INLINE_FRAGMENTS.length)]);
+      }
+      checkInlineWellFormed(text.toString());
+    }
+  }
+
+  @Test
+  public void emphasisRuns() {
+    checkInlineWellFormed(repeat("*a_", 20_000));
+    checkInlineWellFormed(repeat("**", 20_000) + "a" + repeat("_", 20_000));
+    checkInlineWellFormed(repeat("*", 10_000) + "a" + repeat("~~", 10_000));
+  }
+
+  @Test
+  public void bracketRuns() {
+    checkInlineWellFormed(repeat("[", 20_000) + "a" + repeat("](", 20_000));
+    checkInlineWellFormed(repeat("![a", 10_000) + repeat("]", 10_000));
+    checkInlineWellFormed(repeat("[a](b ", 10_000));
+  }
+
+  @NotNull
+  private static ASTNode checkInlineWellFormed(@NotNull String text) {
+    final long start = System.currentTimeMillis();
+    final ASTNode tree = MarkdownParserManager.parseInline(MarkdownElementTypes.PARAGRAPH, text, MarkdownParserManager.FLAVOUR);
+    assertFastEnough(text, start);
+
+    assertEquals(MarkdownElementTypes.PARAGRAPH, tree.getType());
+    assertEquals(0, tree.getStartOffset());
+    assertEquals(text.length(), tree.getEndOffset());
+    MarkdownParserTestUtil.assertContiguous(tree);
+    // the paragraph node and the text leaves are the only levels above the limit
+    assertTrue("the tree is nested too deep", MarkdownParserTestUtil.depth(tree) <= MAX_DEPTH + 2);
+
+    if (MarkdownGuardedParser.isDegraded(tree)) {
+      assertEquals("the content exceeding the budget is kept as plain text", 1, tree.getChildren().size());
+      assertEquals(MarkdownTokenTypes.TEXT, tree.getChildren().get(0).getType());
+    }
+    else if (MarkdownParserTestUtil.depth(tree) <= 64) {
+      final ASTNode expected = new MarkdownParser(MarkdownParserManager.FLAVOUR)
+        .parseInline(MarkdownElementTypes.PARAGRAPH, text, 0, text.length());
+      assertEquals(text, MarkdownParserTestUtil.dump(expected), MarkdownParserTestUtil.dump(tree));
+    }
+    return tree;
+  }
+
+  private static void assertFastEnough(@NotNull String text, long start) {
+    final long elapsed = System.currentTimeMillis() - start;
+    assertTrue("parsing " + text.length() + " chars took " + elapsed + " ms", elapsed <= MAX_PARSE_MS);
+  }
+
+  @NotNull
+  private static ASTNode checkWellFormed(@NotNull String text) {
+    final long start = System.currentTimeMillis();
+    final ASTNode tree = MarkdownGuardedParser.parse(text, MarkdownParserManager.FLAVOUR);
+    assertFastEnough(text, start);
+
+    assertEquals(0, tree.getStartOffset());
+    assertEquals(text.length(), tree.getEndOffset());
+    MarkdownParserTestUtil.assertContiguous(tree);
+    // the file node and the text leaves are the only levels above the limit
+    assertTrue("the tree is nested too deep", MarkdownParserTestUtil.depth(tree) <= MAX_DEPTH + 2);
+
+    final ASTNode again = MarkdownGuardedParser.parse(text, MarkdownParserManager.FLAVOUR);
+    assertEquals("the same text is parsed differently", MarkdownParserTestUtil.dump(tree), MarkdownParserTestUtil.dump(again));
+    assertEquals(MarkdownGuardedParser.isDegraded(tree), MarkdownGuardedParser.isDegraded(again));
+
+    if (MarkdownGuardedParser.isDegraded(tree)) {
+      assertFalse("degraded trees aren't cached", MarkdownParserManager.parseContent(text) == MarkdownParserManager.parseContent(text));
+    }
+    return tree;
+  }
+
+  @NotNull
+  private static String randomDocument(@NotNull Random random, int fragmentCount) {
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; i < fragmentCount; i++) {
+      text.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+    }
+    return text.toString();
+  }
+
+  @NotNull
+  private static String repeat(@NotNull String s, int count) {
+    final StringBuilder result = new StringBuilder(s.length() * count);
+    for (int i = 0; i < count; i++) {
+      result.append(s);
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.parser;
+
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiFileFactory;
+import com.intellij.psi.impl.DebugUtil;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.projector.plugins.markdown.lang.MarkdownLanguage;
+
+import java.util.Random;
+
+/**
+ * Applies random single edits to random documents and checks that the tree after the incremental reparse,
+ * where {@link MarkdownReparseableBlocks} may let an edited block be reparsed alone, is the same as after a full reparse.
+ */
+public class MarkdownIncrementalReparseTest extends BasePlatformTestCase {
+  private static final String[] INSERTIONS = {
+    "\n", "\n\n", " ", "    ", "x", "*", "`", "```", "~~~", "# ", "- ", "1. ", "> ", "|", "<div>", "-->", "[", "]", "===\n",
+  };
+
+  public void testRandomEdits() {
+    final Random random = new Random(42);
+    for (int i = 0; i < 100; i++) {
+      final PsiFile file = myFixture.configureByText("a.md", MarkdownParserTestUtil.randomDocument(random, 2 + random.nextInt(20)));
+      final Document document = myFixture.getEditor().getDocument();
+      final PsiDocumentManager documentManager = PsiDocumentManager.getInstance(getProject());
+
+      for (int j = 0; j < 10; j++) {
+        final String before = document.getText();
+        WriteCommandAction.runWriteCommandAction(getProject(), () -> applyRandomEdit(random, document));
+        documentManager.commitDocument(document);
+
+        final String text = document.getText();
+        final PsiFile expected = PsiFileFactory.getInstance(getProject()).createFileFromText("a.md", MarkdownLanguage.INSTANCE, text);
+        assertEquals("Edited\n" + before + "\ninto\n" + text, DebugUtil.psiToString(expected, false), DebugUtil.psiToString(file, false));
+      }
+    }
+  }
+
+  private static void applyRandomEdit(@NotNull Random random, @NotNull Document document) {
+    final int length = document.getTextLength();
+    final int offset = random.nextInt(length + 1);
+    final int deleted = Math.min(random.nextInt(4), length - offset);
+    switch (random.nextInt(3)) {
+      case 0:
+        document.insertString(offset, INSERTIONS[random.nextInt(INSERTIONS.length)]);
+        break;
+      case 1:
+        document.deleteString(offset, offset + deleted);
+        break;
+      default:
+        document.replaceString(offset, offset + deleted, INSERTIONS[random.nextInt(INSERTIONS.length)]);
+        break;
+    }
+  }
+}
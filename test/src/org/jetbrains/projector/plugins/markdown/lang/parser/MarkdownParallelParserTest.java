@@ -0,0 +1,71 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.parser;
+
+import org.intellij.markdown.ast.ASTNode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that chunked parsing gives the same tree as the sequential one, whatever blocks surround the chunk boundaries.
+ */
+public class MarkdownParallelParserTest {
+  @Test
+  public void chunkBoundaries() {
+    final Random random = new Random(42);
+    for (int i = 0; i < 200; i++) {
+      final String text = MarkdownParserTestUtil.randomDocument(random, 2 + random.nextInt(60));
+      final ASTNode expected = MarkdownGuardedParser.parse(text, MarkdownParserManager.FLAVOUR);
+
+      // tiny chunks put a boundary before every block which may start one
+      for (int chunkLength : new int[]{1, 16, 64}) {
+        final List<Integer> boundaries = MarkdownParallelParser.findChunkBoundaries(text, chunkLength);
+        final List<ASTNode> chunkTrees = new ArrayList<>();
+        for (int j = 0; j < boundaries.size() - 1; j++) {
+          final String chunk = text.substring(boundaries.get(j), boundaries.get(j + 1));
+          chunkTrees.add(MarkdownGuardedParser.parse(chunk, MarkdownParserManager.FLAVOUR));
+        }
+        final ASTNode actual = MarkdownParallelParser.merge(boundaries, chunkTrees);
+        assertEquals(text, MarkdownParserTestUtil.dump(expected), MarkdownParserTestUtil.dump(actual));
+      }
+    }
+  }
+
+  @Test
+  public void largeDocument() {
+    final String text = MarkdownParserTestUtil.randomDocument(new Random(7), 20_000);
+    assertTrue(MarkdownParallelParser.findChunkBoundaries(text, 64 * 1024).size() > 2);
+
+    final ASTNode expected = MarkdownGuardedParser.parse(text, MarkdownParserManager.FLAVOUR);
+    final ASTNode actual = MarkdownParallelParser.parse(text, MarkdownParserManager.FLAVOUR);
+    MarkdownParserTestUtil.assertContiguous(actual);
+    assertEquals(MarkdownParserTestUtil.dump(expected), MarkdownParserTestUtil.dump(actual));
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.parser;
+
+import org.intellij.markdown.ast.ASTNode;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+final class MarkdownParserTestUtil {
+  private static final String[] BLOCKS = {
+    "# Header\n",
+    "Paragraph with *emphasis*\nand a second line\n",
+    "```\nfenced\n\ncode with a blank line\n# not a header\n```\n",
+    "~~~kotlin\nval x = 1\n\n- not a list\n~~~\n",
+    "<div>\n\nhtml block\n\n</div>\n",
+    "<pre>\nraw\n\n# not a header\n</pre>\n",
+    "<!-- comment\n\n# not a header\n-->\n",
+    "- item\n\n  continued item\n\n- another item\n",
+    "1. first\n\n2. second\n",
+    "> quote\n\n> another quote\n",
+    "> lazy quote\ncontinuation\n",
+    "    indented code\n\n    more code\n",
+    "| a | b |\n|---|---|\n| 1 | 2 |\n",
+    "[ref]: http://example.com\n",
+    "***\n",
+    "Setext\n======\n",
+  };
+
+  private MarkdownParserTestUtil() {
+  }
+
+  /**
+   * @return the tree as indented lines of node types and ranges
+   */
+  @NotNull
+  static String dump(@NotNull ASTNode tree) {
+    final StringBuilder result = new StringBuilder();
+    dump(tree, 0, result);
+    return result.toString();
+  }
+
+  private static void dump(@NotNull ASTNode node, int depth, @NotNull StringBuilder result) {
+    for (int i = 0; i < depth; i++) {
+      result.append("  ");
+    }
+    result.append(node.getType()).append(' ').append(node.getStartOffset()).append("..").append(node.getEndOffset()).append('\n');
+    for (ASTNode child : node.getChildren()) {
+      dump(child, depth + 1, result);
+    }
+  }
+
+  /**
+   * Checks that the children of each node cover the node without gaps or overlaps
+   */
+  static void assertContiguous(@NotNull ASTNode node) {
+    final List<ASTNode> children = node.getChildren();
+    if (children.isEmpty()) return;
+
+    int offset = node.getStartOffset();
+    for (ASTNode child : children) {
+      assertEquals("Child of " + node.getType() + " starts at a wrong offset", offset, child.getStartOffset());
+      assertContiguous(child);
+      offset = child.getEndOffset();
+    }
+    assertEquals("Children of " + node.getType() + " end at a wrong offset", node.getEndOffset(), offset);
+  }
+
+  static int depth(@NotNull ASTNode node) {
+    int result = 0;
+    for (ASTNode child : node.getChildren()) {
+      result = Math.max(result, depth(child));
+    }
+    return result + 1;
+  }
+
+  /**
+   * @return blocks of all kinds, mostly separated by blank lines
+   */
+  @NotNull
+  static String randomDocument(@NotNull Random random, int blockCount) {
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; i < blockCount; i++) {
+      text.append(BLOCKS[random.nextInt(BLOCKS.length)]);
+      // blocks are mostly separated by blank lines, as chunks may only start after one
+      if (random.nextInt(4) != 0) {
+        text.append('\n');
+      }
+    }
+    return text.toString();
+  }
+}